@@ -1,90 +1,7059 @@
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
 
 public class BookstoreSystem {
 
+    // Book.stock is only ever changed through this handle, so reservations can be made per
+    // book with a CAS instead of a lock on the whole Inventory.
+    private static final VarHandle BOOK_STOCK;
+    // The same for the stock column of a ColumnarCatalog.
+    private static final VarHandle STOCK_ELEMENT = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long STOCK_VERSION = 1L << 32;
+
+    static {
+        try {
+            BOOK_STOCK = MethodHandles.lookup().findVarHandle(Book.class, "stock", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final Metrics metrics = new Metrics();
+
+    // The version is kept to 31 bits so a stock word is never negative; the take paths
+    // return -1 for "not enough stock". Versions wrap, so compare them with newerStock.
+    private static final long STOCK_VERSION_MASK = 0x7FFFFFFFL << 32;
+
+    static long nextStockWord(long current, int units) {
+        return (current + STOCK_VERSION) & STOCK_VERSION_MASK | units;
+    }
+
+    // Units after giving quantity back; refuses rather than wrapping past Integer.MAX_VALUE.
+    static int addStock(int units, int quantity) {
+        try {
+            return Math.addExact(units, quantity);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Stock would pass " + Integer.MAX_VALUE + ": " + units + " + " + quantity);
+        }
+    }
+
+    // True if word's version is after than's, allowing for the version wrapping around.
+    static boolean newerStock(long word, long than) {
+        return (int) (((word >>> 32) - (than >>> 32)) << 1) > 0;
+    }
+
+    // --- Catalog Entry ---
+    // The read accessors shared by a Book object and a ColumnarCatalog view of one.
+    interface CatalogEntry {
+        int getId();
+        String getTitle();
+        String getAuthor();
+        double getPrice();
+        long getPricePaise();
+        int getStock();
+    }
+
     // --- Book Class ---
-    class Book {
+    class Book implements CatalogEntry {
+        private int id = -1;
         private String title;
         private String author;
         private double price;
-        private int stock;
+        private long pricePaise;
+        // (version << 32) | units, with a 31-bit version. Every change bumps the version in the
+        // same CAS, which lets the persistent store replay logged stock values in any order and
+        // keep the newest.
+        private volatile long stock;
+
+        public Book(String title, String author, double price, int stock) {
+            this.title = title;
+            this.author = author;
+            this.price = price;
+            this.pricePaise = Math.round(price * 100);
+            this.stock = stock;
+        }
+
+        public int getId() { return id; }
+        void setId(int id) { this.id = id; }
+        public String getTitle() { return title; }
+        public String getAuthor() { return author; }
+        public double getPrice() { return price; }
+        // Exact price in paise; all money arithmetic uses this rather than the double.
+        public long getPricePaise() { return pricePaise; }
+        public int getStock() { return (int) stock; }
+        public int getStockVersion() { return (int) (stock >>> 32); }
+        long getStockWord() { return stock; }
+        // Installs a stock word read back from disk; only used while recovering.
+        void restoreStock(long word) { this.stock = word; }
+
+        // Installs a stock word reported by the shard that owns this book, unless a newer
+        // one got here first.
+        void mirrorStock(long word) {
+            long current;
+            do {
+                current = stock;
+                if (!newerStock(word, current)) {
+                    return;
+                }
+            } while (!BOOK_STOCK.compareAndSet(this, current, word));
+        }
+
+        // Stock changes here skip the inventory's listeners (log, indexes, analytics), so only
+        // Inventory implementations and shards call these. Returns the stock word replaced.
+        long setStockWord(int units) {
+            if (units < 0) {
+                throw new IllegalArgumentException("Stock cannot be negative: " + units);
+            }
+            long current;
+            do {
+                current = stock;
+            } while (!BOOK_STOCK.compareAndSet(this, current, nextStockWord(current, units)));
+            return current;
+        }
+
+        // Takes quantity units if that many are available, returning the new stock word, or -1
+        // if there weren't enough. Concurrent callers can never drive stock below zero: the
+        // check and the decrement happen in one CAS.
+        long take(int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+            }
+            StockContentionEvent contention = null;
+            long next;
+            while (true) {
+                long current = stock;
+                if ((int) current < quantity) {
+                    next = -1;
+                    break;
+                }
+                next = nextStockWord(current, (int) current - quantity);
+                if (BOOK_STOCK.compareAndSet(this, current, next)) {
+                    break;
+                }
+                // Only a lost race pays for the bookkeeping.
+                if (contention == null) {
+                    contention = new StockContentionEvent();
+                    contention.begin();
+                }
+                contention.retries++;
+            }
+            if (contention != null) {
+                contended(contention);
+            }
+            return next;
+        }
+
+        private void contended(StockContentionEvent contention) {
+            metrics.stockContended.increment();
+            metrics.stockRetries.add(contention.retries);
+            contention.end();
+            if (contention.shouldCommit()) {
+                contention.bookId = id;
+                contention.title = title;
+                contention.commit();
+            }
+        }
+
+        // Gives back units taken by take (e.g. an item removed from a cart).
+        long give(int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+            }
+            long current;
+            long next;
+            do {
+                current = stock;
+                next = nextStockWord(current, addStock((int) current, quantity));
+            } while (!BOOK_STOCK.compareAndSet(this, current, next));
+            return next;
+        }
+
+        @Override
+        public String toString() {
+            return title + " by " + author + " - ₹" + price + " (" + getStock() + " in stock)";
+        }
+    }
+
+    // --- Cart Class ---
+    // One line per title with a quantity, and running totals kept as items come and go, so
+    // adding, removing and totalling are O(1) however many copies are in the cart. Methods
+    // lock the cart; hold that lock while walking getLines() if other threads share it.
+    class Cart {
+        private ArrayList<CartLine> lines = new ArrayList<>();
+        private HashMap<Book, CartLine> linesByBook = new HashMap<>();
+        private long totalPaise;
+        private int itemCount;
+
+        public synchronized void addBook(Book book) {
+            addBook(book, 1);
+        }
+
+        public synchronized void addBook(Book book, int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+            }
+            CartLine line = linesByBook.get(book);
+            if (line == null) {
+                line = new CartLine(book, lines.size());
+                lines.add(line);
+                linesByBook.put(book, line);
+            }
+            line.quantity += quantity;
+            itemCount += quantity;
+            totalPaise += book.getPricePaise() * quantity;
+        }
+
+        // Takes up to quantity copies of book out of the cart; returns how many were removed.
+        public synchronized int removeBook(Book book, int quantity) {
+            CartLine line = linesByBook.get(book);
+            if (line == null || quantity <= 0) {
+                return 0;
+            }
+            int removed = Math.min(quantity, line.quantity);
+            line.quantity -= removed;
+            itemCount -= removed;
+            totalPaise -= book.getPricePaise() * removed;
+            if (line.quantity == 0) {
+                // Swap the last line into the hole so removal stays O(1).
+                CartLine last = lines.remove(lines.size() - 1);
+                if (last != line) {
+                    last.position = line.position;
+                    lines.set(line.position, last);
+                }
+                linesByBook.remove(book);
+            }
+            return removed;
+        }
+
+        synchronized CartLine getLine(Book book) {
+            return linesByBook.get(book);
+        }
+
+        public synchronized int getQuantity(Book book) {
+            CartLine line = linesByBook.get(book);
+            return line == null ? 0 : line.quantity;
+        }
+
+        public synchronized List<CartLine> getLines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        public synchronized boolean isEmpty() {
+            return lines.isEmpty();
+        }
+
+        public synchronized int getItemCount() {
+            return itemCount;
+        }
+
+        public long getTotalPaise() {
+            long start = metrics.cartTotal.start();
+            long total;
+            synchronized (this) {
+                total = totalPaise;
+            }
+            metrics.cartTotal.stop(start);
+            return total;
+        }
+
+        public double getTotal() {
+            return getTotalPaise() / 100.0;
+        }
+
+        public synchronized void clear() {
+            lines.clear();
+            linesByBook.clear();
+            totalPaise = 0;
+            itemCount = 0;
+        }
+    }
+
+    // --- Cart Line Class ---
+    class CartLine {
+        private final Book book;
+        private int quantity;
+        private int position;
+        Reservations.Hold hold;
+
+        CartLine(Book book, int position) {
+            this.book = book;
+            this.position = position;
+        }
+
+        public Book getBook() { return book; }
+        public int getQuantity() { return quantity; }
+        public long getSubtotalPaise() { return book.getPricePaise() * quantity; }
+    }
+
+    // Formats an amount in paise as rupees with exactly two decimals, e.g. 149700 -> "1497.00".
+    static String formatRupees(long paise) {
+        long rupees = paise / 100;
+        long cents = Math.abs(paise % 100);
+        return (paise < 0 && rupees == 0 ? "-" : "") + rupees + (cents < 10 ? ".0" : ".") + cents;
+    }
+
+    // --- User Class ---
+    class User {
+        private String name;
+        private Cart cart;
+
+        public User(String name) {
+            this(name, new Cart());
+        }
+
+        public User(String name, Cart cart) {
+            this.name = name;
+            this.cart = cart;
+        }
+
+        public String getName() { return name; }
+        public Cart getCart() { return cart; }
+    }
+
+    // --- Inventory ---
+    // The catalog plus stock, as the rest of the system sees it. LocalInventory keeps it all
+    // in this JVM; ShardedInventory spreads the stock over partitions.
+    interface Inventory {
+        void addBook(Book book);
+        void addBooks(List<Book> batch);
+        void ensureCapacity(int additional);
+        void addListener(InventoryListener listener);
+        void removeListener(InventoryListener listener);
+        boolean purchaseBook(Book book);
+        boolean reserve(Book book, int quantity);
+        // All or nothing: takes quantities[i] of every books.get(i), or changes nothing.
+        boolean reserveAll(List<Book> books, int[] quantities);
+        void release(Book book, int quantity);
+        void setStock(Book book, int units);
+        int size();
+        Book getBook(int id);
+        List<Book> getBooks(int start, int count);
+        List<Book> search(String query, int limit);
+    }
+
+    // --- Inventory Class ---
+    class LocalInventory implements Inventory {
+        private ArrayList<Book> books = new ArrayList<>();
+        private CatalogIndex index = new CatalogIndex(this::getBook);
+        private CopyOnWriteArrayList<InventoryListener> listeners = new CopyOnWriteArrayList<>();
+
+        public synchronized void addBook(Book book) {
+            book.setId(rows());
+            Book added = store(book);
+            placeAll(List.of(added));
+            index.addAll(List.of(added));
+            for (InventoryListener listener : listeners) {
+                listener.bookAdded(added);
+            }
+        }
+
+        // Adds a whole batch under one lock acquisition and indexes it in one pass.
+        public synchronized void addBooks(List<Book> batch) {
+            reserveRows(batch.size());
+            List<Book> added = new ArrayList<>(batch.size());
+            for (Book book : batch) {
+                book.setId(rows());
+                added.add(store(book));
+            }
+            placeAll(added);
+            index.addAll(added);
+            for (Book book : added) {
+                for (InventoryListener listener : listeners) {
+                    listener.bookAdded(book);
+                }
+            }
+        }
+
+        // Makes room for this many more books up front, e.g. before a bulk import.
+        public synchronized void ensureCapacity(int additional) {
+            reserveRows(additional);
+        }
+
+        // Appends books read back from disk without indexing or notifying listeners; call
+        // recovered() once recovery is done.
+        synchronized void restoreBooks(List<Book> batch) {
+            reserveRows(batch.size());
+            for (Book book : batch) {
+                book.setId(rows());
+                store(book);
+            }
+        }
+
+        // Called once restored books hold their final stock.
+        void recovered() {
+            indexInBackground();
+        }
+
+        // Lets the search index catch up with restored books on a background thread, so a
+        // large catalog is browsable straight away and becomes searchable shortly after.
+        void indexInBackground() {
+            Thread indexer = new Thread(() -> {
+                List<Book> page;
+                while (!(page = getBooks(index.size(), 4_096)).isEmpty()) {
+                    index.addAll(page);
+                }
+            }, "catalog-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+
+        public void addListener(InventoryListener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(InventoryListener listener) {
+            listeners.remove(listener);
+        }
+
+        public ArrayList<Book> getBooks() {
+            return books;
+        }
+
+        // No inventory-wide lock: each title's stock is its own atomic counter, so
+        // shoppers buying different books never contend with each other.
+        public boolean purchaseBook(Book book) {
+            return reserve(book, 1);
+        }
+
+        public boolean reserve(Book book, int quantity) {
+            long start = metrics.reserve.start();
+            long word = takeStock(book, quantity);
+            if (word < 0) {
+                metrics.reserveRejected.increment();
+                metrics.reserve.stop(start);
+                return false;
+            }
+            stockChanged(book, -quantity, word);
+            metrics.reserve.stop(start);
+            return true;
+        }
+
+        // Takes the titles one at a time and puts back what it took if one runs short.
+        public boolean reserveAll(List<Book> books, int[] quantities) {
+            for (int i = 0; i < books.size(); i++) {
+                if (!reserve(books.get(i), quantities[i])) {
+                    for (int j = 0; j < i; j++) {
+                        release(books.get(j), quantities[j]);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void release(Book book, int quantity) {
+            stockChanged(book, quantity, giveStock(book, quantity));
+        }
+
+        public void setStock(Book book, int units) {
+            long previous = replaceStock(book, units);
+            stockChanged(book, units - (int) previous, nextStockWord(previous, units));
+        }
+
+        // Where the catalog lives. store keeps a new book (id already assigned) and returns the
+        // Book handed out for it from then on; row(id) is that Book for any id below rows().
+        // Here the books themselves, in an ArrayList. Callers hold the inventory's lock.
+        Book store(Book book) {
+            books.add(book);
+            return book;
+        }
+
+        Book row(int id) {
+            return books.get(id);
+        }
+
+        int rows() {
+            return books.size();
+        }
+
+        void reserveRows(int additional) {
+            books.ensureCapacity(books.size() + additional);
+        }
+
+        // Hands new books (ids assigned, listeners not yet told) to whatever keeps their stock.
+        void placeAll(List<Book> batch) {
+        }
+
+        // Where stock actually changes, returning the new stock word (take: -1 if short;
+        // replace: the word replaced). Here the book's own word is the stock.
+        long takeStock(Book book, int quantity) {
+            return book.take(quantity);
+        }
+
+        long giveStock(Book book, int quantity) {
+            return book.give(quantity);
+        }
+
+        long replaceStock(Book book, int units) {
+            return book.setStockWord(units);
+        }
+
+        void stockChanged(Book book, int delta, long word) {
+            for (InventoryListener listener : listeners) {
+                listener.stockChanged(book, delta, (int) word, (int) (word >>> 32));
+            }
+        }
+
+        public synchronized int size() {
+            return rows();
+        }
+
+        public synchronized Book getBook(int id) {
+            return id >= 0 && id < rows() ? row(id) : null;
+        }
+
+        // Copy of up to count books starting at start, for paged readers such as PagedListModel.
+        public synchronized List<Book> getBooks(int start, int count) {
+            int end = Math.min(rows(), start + count);
+            if (start >= end) {
+                return Collections.emptyList();
+            }
+            ArrayList<Book> page = new ArrayList<>(end - start);
+            for (int id = start; id < end; id++) {
+                page.add(row(id));
+            }
+            return page;
+        }
+
+        // Ranked title/author search; the last word of the query matches as a prefix.
+        public List<Book> search(String query, int limit) {
+            return index.search(query, limit);
+        }
+    }
+
+    // --- Inventory Listener ---
+    // Told about every catalog and stock change made through an Inventory, on the thread
+    // that made it. Stock changes carry the signed delta plus the resulting stock and version.
+    interface InventoryListener {
+        void bookAdded(Book book);
+        void stockChanged(Book book, int delta, int stock, int version);
+    }
+
+    // --- Sharded Inventory ---
+    // Splits the stock across InventoryShards by consistent hashing of book ids. Each shard
+    // owns VIRTUAL_NODES points on a 32-bit ring, and a book belongs to the first point at or
+    // after its hash, so adding a shard would move only about 1/N of the books. The catalog
+    // stays here as in LocalInventory: titles, prices, the search index, listeners and paging.
+    // Only stock changes are routed to the owning shard. A shard can live in this JVM
+    // (LocalShard) or in a worker process reached over loopback TCP or a Unix domain socket
+    // (RemoteShard).
+    // reserveAll is a two-phase commit. Every shard with lines in the order prepares, taking
+    // all of its lines or none. All are told to commit only if every one took its lines;
+    // otherwise the ones that prepared abort and put their lines back. The coordinator doesn't
+    // log its decisions, so a crash between the phases loses the prepared stock, just as it
+    // loses everything else a worker holds in memory.
+    class ShardedInventory extends LocalInventory {
+        private static final int VIRTUAL_NODES = 128;
+
+        private final InventoryShard[] shards;
+        private final int[] ringPoints;
+        private final int[] ringOwners;
+        private final AtomicLong transactions = new AtomicLong();
+
+        // partitions shards, in this JVM ("in-process") or as workers over "tcp" or "unix".
+        ShardedInventory(int partitions, String transport, int connectionsPerShard) throws IOException {
+            this(openShards(partitions, transport, connectionsPerShard));
+        }
+
+        ShardedInventory(List<InventoryShard> shards) {
+            this.shards = shards.toArray(new InventoryShard[0]);
+            // Sorted by point; each entry is (point << 32) | owner.
+            long[] ring = new long[this.shards.length * VIRTUAL_NODES];
+            for (int shard = 0; shard < this.shards.length; shard++) {
+                for (int node = 0; node < VIRTUAL_NODES; node++) {
+                    ring[shard * VIRTUAL_NODES + node] = ((long) mix(shard * VIRTUAL_NODES + node + 0x5EED) << 32) | shard;
+                }
+            }
+            java.util.Arrays.sort(ring);
+            ringPoints = new int[ring.length];
+            ringOwners = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                ringPoints[i] = (int) (ring[i] >> 32);
+                ringOwners[i] = (int) ring[i];
+            }
+        }
+
+        int shardIndex(Book book) {
+            int i = java.util.Arrays.binarySearch(ringPoints, mix(book.getId()));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return ringOwners[i == ringPoints.length ? 0 : i];
+        }
+
+        public int getPartitions() {
+            return shards.length;
+        }
+
+        @Override
+        void placeAll(List<Book> batch) {
+            ArrayList<List<Book>> byShard = new ArrayList<>();
+            for (int i = 0; i < shards.length; i++) {
+                byShard.add(new ArrayList<>());
+            }
+            for (Book book : batch) {
+                byShard.get(shardIndex(book)).add(book);
+            }
+            for (int i = 0; i < shards.length; i++) {
+                if (!byShard.get(i).isEmpty()) {
+                    shards[i].addBooks(byShard.get(i));
+                }
+            }
+        }
+
+        // Restored books only reach the shards once their stock is final.
+        @Override
+        void recovered() {
+            List<Book> page;
+            for (int start = 0; !(page = getBooks(start, 4_096)).isEmpty(); start += page.size()) {
+                placeAll(page);
+            }
+            super.recovered();
+        }
+
+        @Override
+        long takeStock(Book book, int quantity) {
+            return shards[shardIndex(book)].take(book, quantity);
+        }
+
+        @Override
+        long giveStock(Book book, int quantity) {
+            return shards[shardIndex(book)].give(book, quantity);
+        }
+
+        @Override
+        long replaceStock(Book book, int units) {
+            return shards[shardIndex(book)].replace(book, units);
+        }
+
+        @Override
+        public boolean reserveAll(List<Book> books, int[] quantities) {
+            long start = metrics.reserve.start();
+            long tx = transactions.incrementAndGet();
+            int[] owners = new int[books.size()];
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = shardIndex(books.get(i));
+            }
+            boolean committed = true;
+            // Every shard asked to prepare, including one whose prepare threw: a request lost
+            // midway may still have taken its lines on the other side.
+            ArrayList<InventoryShard> prepared = new ArrayList<>();
+            try {
+                for (int shard = 0; shard < shards.length && committed; shard++) {
+                    ArrayList<Book> lines = new ArrayList<>();
+                    int[] lineQuantities = new int[owners.length];
+                    for (int i = 0; i < owners.length; i++) {
+                        if (owners[i] == shard) {
+                            lineQuantities[lines.size()] = quantities[i];
+                            lines.add(books.get(i));
+                        }
+                    }
+                    if (lines.isEmpty()) {
+                        continue;
+                    }
+                    prepared.add(shards[shard]);
+                    if (!shards[shard].prepare(tx, lines, java.util.Arrays.copyOf(lineQuantities, lines.size()))) {
+                        prepared.remove(prepared.size() - 1); // refused, so it took nothing
+                        committed = false;
+                    }
+                }
+            } catch (RuntimeException e) {
+                committed = false;
+                throw e;
+            } finally {
+                finish(tx, prepared, committed);
+            }
+            if (committed) {
+                for (int i = 0; i < owners.length; i++) {
+                    stockChanged(books.get(i), -quantities[i], books.get(i).getStockWord());
+                }
+            } else {
+                metrics.reserveRejected.increment();
+            }
+            metrics.reserve.stop(start);
+            return committed;
+        }
+
+        // Second phase. Every prepared shard is told the outcome even if telling another one
+        // fails. A commit that doesn't get through changes nothing, since its lines are already
+        // taken. An abort that doesn't get through leaves them out of stock on that shard.
+        private void finish(long tx, List<InventoryShard> prepared, boolean commit) {
+            for (InventoryShard shard : prepared) {
+                try {
+                    if (commit) {
+                        shard.commit(tx);
+                    } else {
+                        shard.abort(tx);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Shard " + (commit ? "commit" : "abort") + " of transaction " + tx + " failed: " + e);
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            for (InventoryShard shard : shards) {
+                shard.close();
+            }
+        }
+
+        // murmur3's 32-bit finalizer, to spread sequential ids round the ring.
+        private int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    List<InventoryShard> openShards(int partitions, String transport, int connectionsPerShard) throws IOException {
+        ArrayList<InventoryShard> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < partitions; i++) {
+                shards.add(transport.equals("in-process") ? new LocalShard() : new RemoteShard(transport, connectionsPerShard));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (InventoryShard shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+        return shards;
+    }
+
+    // The command that starts this program in a new JVM, whether it was compiled or launched
+    // straight from BookstoreSystem.java.
+    static List<String> selfCommand() throws IOException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        Path location;
+        try {
+            location = Paths.get(BookstoreSystem.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (java.net.URISyntaxException | NullPointerException | SecurityException e) {
+            throw new IOException("Can't tell where BookstoreSystem was loaded from", e);
+        }
+        if (location.toString().endsWith(".java")) {
+            command.add(location.toString());
+        } else {
+            command.addAll(List.of("-cp", location.toString(), "BookstoreSystem"));
+        }
+        return command;
+    }
+
+    // --- Inventory Shard ---
+    // One partition of the stock. take/give return the new stock word (take: -1 if short),
+    // replace the word it replaced. prepare takes every line or none and says which; the
+    // transaction is then committed (the lines stay taken) or aborted (they go back).
+    interface InventoryShard {
+        void addBooks(List<Book> books);
+        long take(Book book, int quantity);
+        long give(Book book, int quantity);
+        long replace(Book book, int units);
+        boolean prepare(long tx, List<Book> books, int[] quantities);
+        void commit(long tx);
+        void abort(long tx);
+        void close() throws IOException;
+    }
+
+    // --- Local Shard ---
+    // A partition in this JVM. The books' own stock words are the stock, so routing to it
+    // costs only the ring lookup. It also runs inside every shard worker, over that
+    // worker's copies of its books.
+    class LocalShard implements InventoryShard {
+        private final ConcurrentHashMap<Long, Prepared> prepared = new ConcurrentHashMap<>();
+
+        class Prepared {
+            final List<Book> books;
+            final int[] quantities;
+
+            Prepared(List<Book> books, int[] quantities) {
+                this.books = books;
+                this.quantities = quantities;
+            }
+        }
+
+        @Override
+        public void addBooks(List<Book> books) {
+            // Nothing to copy: the books carry their stock
+        }
+
+        @Override
+        public long take(Book book, int quantity) {
+            return book.take(quantity);
+        }
+
+        @Override
+        public long give(Book book, int quantity) {
+            return book.give(quantity);
+        }
+
+        @Override
+        public long replace(Book book, int units) {
+            return book.setStockWord(units);
+        }
+
+        @Override
+        public boolean prepare(long tx, List<Book> books, int[] quantities) {
+            for (int i = 0; i < books.size(); i++) {
+                if (books.get(i).take(quantities[i]) < 0) {
+                    for (int j = 0; j < i; j++) {
+                        books.get(j).give(quantities[j]);
+                    }
+                    return false;
+                }
+            }
+            prepared.put(tx, new Prepared(books, quantities));
+            return true;
+        }
+
+        @Override
+        public void commit(long tx) {
+            prepared.remove(tx);
+        }
+
+        @Override
+        public void abort(long tx) {
+            Prepared lines = prepared.remove(tx);
+            if (lines != null) {
+                for (int i = 0; i < lines.books.size(); i++) {
+                    lines.books.get(i).give(lines.quantities[i]);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // --- Remote Shard ---
+    // A partition in a worker process (see ShardWorker) started from this same program and
+    // reached over loopback TCP or a Unix domain socket. Callers borrow a connection from a
+    // small pool for each request, so that many requests can be in flight to one worker.
+    // A connection that fails mid-request may be out of step with the worker (half a request
+    // sent, or a reply unread), so it is closed and the next borrower opens a fresh one.
+    // Every reply carries the book's new stock word, and the local Book keeps it as a mirror
+    // for rendering and listeners.
+    class RemoteShard implements InventoryShard {
+        static final byte ADD = 1;
+        static final byte TAKE = 2;
+        static final byte GIVE = 3;
+        static final byte REPLACE = 4;
+        static final byte PREPARE = 5;
+        static final byte COMMIT = 6;
+        static final byte ABORT = 7;
+
+        private final Process process;
+        private final Path socketDir;
+        private final ArrayBlockingQueue<Connection> connections;
+        private final ConcurrentHashMap<Long, List<Book>> prepared = new ConcurrentHashMap<>();
+
+        RemoteShard(String transport, int connectionCount) throws IOException {
+            boolean unix = transport.equals("unix");
+            if (!unix && !transport.equals("tcp")) {
+                throw new IllegalArgumentException("Unknown shard transport: " + transport);
+            }
+            socketDir = unix ? Files.createTempDirectory("readnest-shard") : null;
+            List<String> command = selfCommand();
+            command.addAll(List.of("shard-worker", transport, unix ? socketDir.resolve("shard.sock").toString() : "0"));
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try {
+                String ready = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))
+                        .readLine();
+                if (ready == null || !ready.startsWith("READY ")) {
+                    throw new IOException("Shard worker did not start");
+                }
+                SocketAddress address = unix ? UnixDomainSocketAddress.of(ready.substring(6))
+                        : new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(ready.substring(6)));
+                connections = new ArrayBlockingQueue<>(connectionCount);
+                for (int i = 0; i < connectionCount; i++) {
+                    Connection connection = new Connection(address, unix);
+                    connection.open();
+                    connections.add(connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                process.destroy();
+                throw e;
+            }
+        }
+
+        private class Connection {
+            private final SocketAddress address;
+            private final boolean unix;
+            SocketChannel channel; // null while closed
+            DataInputStream in;
+            DataOutputStream out;
+
+            Connection(SocketAddress address, boolean unix) {
+                this.address = address;
+                this.unix = unix;
+            }
+
+            void open() throws IOException {
+                channel = SocketChannel.open(address);
+                if (!unix) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            }
+
+            void close() {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // dropping it either way
+                    }
+                    channel = null;
+                }
+            }
+        }
+
+        interface Exchange {
+            long run(DataInputStream in, DataOutputStream out) throws IOException;
+        }
+
+        private long call(Exchange exchange) {
+            Connection connection;
+            try {
+                connection = connections.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for shard connection", e);
+            }
+            try {
+                if (connection.channel == null) {
+                    connection.open();
+                }
+                return exchange.run(connection.in, connection.out);
+            } catch (IOException e) {
+                connection.close();
+                throw new UncheckedIOException("Shard worker unreachable", e);
+            } finally {
+                connections.add(connection);
+            }
+        }
+
+        private long simple(byte op, Book book, int argument) {
+            return call((in, out) -> {
+                out.writeByte(op);
+                out.writeInt(book.getId());
+                out.writeInt(argument);
+                out.flush();
+                return in.readLong();
+            });
+        }
+
+        @Override
+        public void addBooks(List<Book> books) {
+            call((in, out) -> {
+                out.writeByte(ADD);
+                out.writeInt(books.size());
+                for (Book book : books) {
+                    out.writeInt(book.getId());
+                    out.writeLong(book.getStockWord());
+                }
+                out.flush();
+                return in.readLong();
+            });
+        }
+
+        @Override
+        public long take(Book book, int quantity) {
+            long word = simple(TAKE, book, quantity);
+            if (word >= 0) {
+                book.mirrorStock(word);
+            }
+            return word;
+        }
+
+        @Override
+        public long give(Book book, int quantity) {
+            long word = simple(GIVE, book, quantity);
+            book.mirrorStock(word);
+            return word;
+        }
+
+        @Override
+        public long replace(Book book, int units) {
+            long previous = simple(REPLACE, book, units);
+            book.mirrorStock(nextStockWord(previous, units));
+            return previous;
+        }
+
+        @Override
+        public boolean prepare(long tx, List<Book> books, int[] quantities) {
+            long[] words = new long[books.size()];
+            prepared.put(tx, books); // before sending, so an abort after a lost reply can mirror them
+            boolean taken = call((in, out) -> {
+                out.writeByte(PREPARE);
+                out.writeLong(tx);
+                out.writeInt(books.size());
+                for (int i = 0; i < books.size(); i++) {
+                    out.writeInt(books.get(i).getId());
+                    out.writeInt(quantities[i]);
+                }
+                out.flush();
+                return readWords(in, words);
+            }) > 0;
+            if (taken) {
+                mirror(books, words);
+            } else {
+                prepared.remove(tx);
+            }
+            return taken;
+        }
+
+        @Override
+        public void commit(long tx) {
+            prepared.remove(tx);
+            call((in, out) -> {
+                out.writeByte(COMMIT);
+                out.writeLong(tx);
+                out.flush();
+                return in.readLong();
+            });
+        }
+
+        @Override
+        public void abort(long tx) {
+            List<Book> books = prepared.remove(tx);
+            long[] words = new long[books == null ? 0 : books.size()];
+            long count = call((in, out) -> {
+                out.writeByte(ABORT);
+                out.writeLong(tx);
+                out.flush();
+                return readWords(in, words);
+            });
+            if (count > 0 && books != null) {
+                mirror(books, words);
+            }
+        }
+
+        // Replies to PREPARE and ABORT: a count, then that many stock words.
+        private long readWords(DataInputStream in, long[] words) throws IOException {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long word = in.readLong();
+                if (i < words.length) {
+                    words[i] = word;
+                }
+            }
+            return count;
+        }
+
+        private void mirror(List<Book> books, long[] words) {
+            for (int i = 0; i < books.size(); i++) {
+                books.get(i).mirrorStock(words[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            process.getOutputStream().close(); // the worker exits when its stdin closes
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            if (socketDir != null) {
+                Files.deleteIfExists(socketDir.resolve("shard.sock"));
+                Files.deleteIfExists(socketDir);
+            }
+        }
+    }
+
+    // --- Shard Worker ---
+    // The process behind a RemoteShard: java BookstoreSystem shard-worker tcp|unix <port|path>.
+    // It keeps a stock-only copy of each of its books and serves a LocalShard over them, one
+    // thread per connection. It prints "READY <port|path>" once it is listening, and exits
+    // when its parent closes its stdin (or dies).
+    class ShardWorker {
+        private final LocalShard shard = new LocalShard();
+        private final ConcurrentHashMap<Integer, Book> books = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Long, List<Book>> prepared = new ConcurrentHashMap<>();
+
+        public void run(String transport, String address) throws IOException {
+            boolean unix = transport.equals("unix");
+            ServerSocketChannel server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+            server.bind(unix ? UnixDomainSocketAddress.of(address)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)), 64);
+            System.out.println("READY " + (unix ? address : ((InetSocketAddress) server.getLocalAddress()).getPort()));
+            System.out.flush();
+
+            Thread parentWatch = new Thread(() -> {
+                try {
+                    while (System.in.read() >= 0) {
+                        // only EOF matters
+                    }
+                } catch (IOException e) {
+                    // parent gone either way
+                }
+                System.exit(0);
+            }, "parent-watch");
+            parentWatch.setDaemon(true);
+            parentWatch.start();
+
+            while (true) {
+                SocketChannel channel = server.accept();
+                Thread connection = new Thread(() -> serve(channel), "shard-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+
+        private void serve(SocketChannel channel) {
+            try (channel) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                while (true) {
+                    byte op;
+                    try {
+                        op = in.readByte();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    switch (op) {
+                        case RemoteShard.ADD:
+                            for (int count = in.readInt(); count > 0; count--) {
+                                Book book = new Book("", "", 0, 0);
+                                book.setId(in.readInt());
+                                book.restoreStock(in.readLong());
+                                books.put(book.getId(), book);
+                            }
+                            out.writeLong(0);
+                            break;
+                        case RemoteShard.TAKE:
+                            out.writeLong(shard.take(book(in.readInt()), in.readInt()));
+                            break;
+                        case RemoteShard.GIVE:
+                            out.writeLong(shard.give(book(in.readInt()), in.readInt()));
+                            break;
+                        case RemoteShard.REPLACE:
+                            out.writeLong(shard.replace(book(in.readInt()), in.readInt()));
+                            break;
+                        case RemoteShard.PREPARE: {
+                            long tx = in.readLong();
+                            int count = in.readInt();
+                            ArrayList<Book> lines = new ArrayList<>(count);
+                            int[] quantities = new int[count];
+                            for (int i = 0; i < count; i++) {
+                                lines.add(book(in.readInt()));
+                                quantities[i] = in.readInt();
+                            }
+                            if (shard.prepare(tx, lines, quantities)) {
+                                prepared.put(tx, lines);
+                                writeWords(out, lines);
+                            } else {
+                                out.writeInt(0);
+                            }
+                            break;
+                        }
+                        case RemoteShard.COMMIT:
+                            long committed = in.readLong();
+                            prepared.remove(committed);
+                            shard.commit(committed);
+                            out.writeLong(0);
+                            break;
+                        case RemoteShard.ABORT: {
+                            long tx = in.readLong();
+                            List<Book> lines = prepared.remove(tx);
+                            shard.abort(tx);
+                            writeWords(out, lines == null ? List.of() : lines);
+                            break;
+                        }
+                        default:
+                            throw new IOException("Unknown shard request " + op);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Shard connection closed: " + e);
+            }
+        }
+
+        private Book book(int id) throws IOException {
+            Book book = books.get(id);
+            if (book == null) {
+                throw new IOException("Book " + id + " is not on this shard");
+            }
+            return book;
+        }
+
+        private void writeWords(DataOutputStream out, List<Book> lines) throws IOException {
+            out.writeInt(lines.size());
+            for (Book book : lines) {
+                out.writeLong(book.getStockWord());
+            }
+        }
+    }
+
+    // --- Shard Scaling Benchmark ---
+    // Shoppers buy and return single titles, and one checkout in ten takes three random
+    // titles at once through reserveAll. The run is repeated with 1, 2, 4 ... partitions,
+    // in process or as worker processes, and every copy must be back in stock at the end.
+    // Run with: java BookstoreSystem.java bench-shards [partitions] [in-process|tcp|unix] [threads]
+    class ShardScalingBenchmark {
+        private static final int BOOKS = 100_000;
+        private static final int STOCK = 1_000_000;
+        private static final long RUN_MILLIS = 3_000;
+
+        public void run(int maxPartitions, String transport, int threads) throws Exception {
+            List<Book> catalog = new SyntheticCatalog().books(BOOKS, 19);
+            System.out.printf("%d shopper threads, %s partitions, %,d books%n", threads, transport, BOOKS);
+            System.out.printf("%-11s %12s %12s %14s%n", "partitions", "ops/s", "us/op", "checkouts");
+            for (int partitions = 1; partitions <= maxPartitions; partitions *= 2) {
+                ShardedInventory inventory = new ShardedInventory(partitions, transport, threads);
+                try {
+                    ArrayList<Book> books = new ArrayList<>(BOOKS);
+                    for (Book book : catalog) {
+                        books.add(new Book(book.getTitle(), book.getAuthor(), book.getPrice(), STOCK));
+                    }
+                    inventory.addBooks(books);
+                    measure(inventory, partitions, threads);
+                } finally {
+                    inventory.close();
+                }
+            }
+        }
+
+        private void measure(ShardedInventory inventory, int partitions, int threads) throws InterruptedException {
+            LongAdder operations = new LongAdder();
+            LongAdder multiTitle = new LongAdder();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+            Thread[] shoppers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                shoppers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int[] quantities = {1, 1, 1};
+                    while (System.nanoTime() < deadline) {
+                        if (random.nextInt(10) == 0) {
+                            List<Book> order = List.of(inventory.getBook(random.nextInt(BOOKS)),
+                                    inventory.getBook(random.nextInt(BOOKS)), inventory.getBook(random.nextInt(BOOKS)));
+                            if (inventory.reserveAll(order, quantities)) {
+                                for (Book book : order) {
+                                    inventory.release(book, 1);
+                                }
+                            }
+                            multiTitle.increment();
+                        } else {
+                            Book book = inventory.getBook(random.nextInt(BOOKS));
+                            if (inventory.purchaseBook(book)) {
+                                inventory.release(book, 1);
+                            }
+                        }
+                        operations.increment();
+                    }
+                });
+                shoppers[t].start();
+            }
+            for (Thread shopper : shoppers) {
+                shopper.join();
+            }
+            for (int id = 0; id < BOOKS; id++) {
+                if (inventory.getBook(id).getStock() != STOCK) {
+                    throw new IllegalStateException("Book " + id + " has " + inventory.getBook(id).getStock() + " in stock");
+                }
+            }
+            double perSecond = operations.sum() * 1_000.0 / RUN_MILLIS;
+            System.out.printf("%-11d %,12.0f %12.2f %,14d%n", partitions, perSecond, threads * 1_000_000.0 / perSecond,
+                    multiTitle.sum());
+        }
+    }
+
+    // --- Inventory Store ---
+    // Keeps the inventory on disk as a write-ahead log of catalog and stock changes plus
+    // periodic binary snapshots. Changes are appended by a single writer thread that drains
+    // whatever has queued up and fsyncs it as one batch (group commit), so shoppers never
+    // wait on the disk. A checkpoint switches to a new log segment, writes a snapshot of the
+    // live inventory and deletes the segments it covers. The snapshot may include changes
+    // that are also in the new segment; that's harmless, because replay keeps only stock
+    // versions newer than the book already has and skips book ids it already holds.
+    //
+    // Snapshot layout (memory-mapped on startup, then decoded into Books in one pass):
+    //   header  magic:long count:int reserved:int firstSegment:long heapStart:long
+    //   records count x [price:double stock:long titleOffset:int titleLength:int
+    //                    authorOffset:int authorLength:int]
+    //   heap    UTF-8 strings, at most 4 GB, offsets unsigned; each distinct author stored once
+    // Log record: length:int type:byte payload crc32:int
+    class InventoryStore implements InventoryListener {
+        private static final long SNAPSHOT_MAGIC = 0x524E534E41503031L; // "RNSNAP01"
+        private static final int HEADER_BYTES = 32;
+        private static final int RECORD_BYTES = 32;
+        // One MappedByteBuffer stops at 2 GB, so snapshots are mapped in windows this size.
+        private static final int SNAPSHOT_WINDOW_BITS = 30;
+        private static final long SNAPSHOT_WINDOW = 1L << SNAPSHOT_WINDOW_BITS;
+        // Heap offsets are stored as unsigned ints.
+        private static final long MAX_HEAP_BYTES = 1L << 32;
+        private static final byte ADD_BOOK = 1;
+        private static final byte SET_STOCK = 2;
+        private static final int QUEUE_CAPACITY = 65_536;
+        private static final int MAX_BATCH = 8_192;
+        private static final long CHECKPOINT_BYTES = 64L << 20;
+        private static final long CHECKPOINT_MINUTES = 5;
+
+        private final Path dir;
+        private final Path snapshotPath;
+        private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+        private final ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "inventory-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private Inventory inventory;
+        private Thread writer;
+        private volatile boolean writerParked;
+        private volatile boolean running;
+        private volatile IOException failure;
+        // Owned by the writer thread.
+        private FileChannel segment;
+        private long segmentNumber;
+        private long segmentBytes;
+        // Where the current batch started writing into segment, and segmentBytes at that point.
+        private long batchStart;
+        private long batchStartBytes;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private boolean unforced;
+        private final CRC32 crc = new CRC32();
+
+        // Rotate/flush requests travel through the queue so they are ordered with the records.
+        class Marker {
+            final boolean rotate;
+            final CountDownLatch done = new CountDownLatch(1);
+            long newSegment;
+
+            Marker(boolean rotate) {
+                this.rotate = rotate;
+            }
+        }
+
+        // A stock change as queued; encoded by the writer.
+        class StockRecord {
+            final int id;
+            final int stock;
+            final int version;
+
+            StockRecord(int id, int stock, int version) {
+                this.id = id;
+                this.stock = stock;
+                this.version = version;
+            }
+        }
+
+        InventoryStore(Path dir) {
+            this.dir = dir;
+            this.snapshotPath = dir.resolve("inventory.snapshot");
+        }
+
+        // --- Recovery ---
+
+        public class RecoveryStats {
+            public int snapshotBooks;
+            public long snapshotMillis;
+            public long replayedRecords;
+            public long replayMillis;
+        }
+
+        // Loads the newest snapshot into an empty inventory and replays the log written after
+        // it. Returns null if there is nothing on disk yet.
+        public RecoveryStats recover(LocalInventory target) throws IOException {
+            Files.createDirectories(dir);
+            RecoveryStats stats = new RecoveryStats();
+            long firstSegment = 0;
+            long start = System.nanoTime();
+            if (Files.exists(snapshotPath)) {
+                firstSegment = loadSnapshot(target, stats);
+            }
+            stats.snapshotMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            List<Long> segments = segments();
+            for (long number : segments) {
+                if (number >= firstSegment) {
+                    stats.replayedRecords += replay(target, segmentPath(number));
+                }
+            }
+            stats.replayMillis = (System.nanoTime() - start) / 1_000_000;
+            target.recovered();
+            segmentNumber = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.get(segments.size() - 1) + 1);
+            boolean empty = !Files.exists(snapshotPath) && segments.isEmpty();
+            return empty ? null : stats;
+        }
+
+        // Decodes every record into a Book for restoreBooks; nothing reads the mapping lazily.
+        private long loadSnapshot(LocalInventory target, RecoveryStats stats) throws IOException {
+            try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                MappedSnapshot map = new MappedSnapshot(channel);
+                if (map.getLong(0) != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not an inventory snapshot: " + snapshotPath);
+                }
+                int count = map.getInt(8);
+                long firstSegment = map.getLong(16);
+                long heap = map.getLong(24);
+                ArrayList<Book> restored = new ArrayList<>(count);
+                HashMap<Long, String> authors = new HashMap<>();
+                byte[] scratch = new byte[256];
+                for (int i = 0; i < count; i++) {
+                    long at = HEADER_BYTES + (long) i * RECORD_BYTES;
+                    int titleLength = map.getInt(at + 20);
+                    if (scratch.length < titleLength) {
+                        scratch = new byte[titleLength * 2];
+                    }
+                    map.get(heap + Integer.toUnsignedLong(map.getInt(at + 16)), scratch, titleLength);
+                    String title = new String(scratch, 0, titleLength, StandardCharsets.UTF_8);
+                    long authorOffset = Integer.toUnsignedLong(map.getInt(at + 24));
+                    String author = authors.get(authorOffset);
+                    if (author == null) {
+                        int authorLength = map.getInt(at + 28);
+                        if (scratch.length < authorLength) {
+                            scratch = new byte[authorLength * 2];
+                        }
+                        map.get(heap + authorOffset, scratch, authorLength);
+                        author = new String(scratch, 0, authorLength, StandardCharsets.UTF_8);
+                        authors.put(authorOffset, author);
+                    }
+                    Book book = new Book(title, author, map.getDouble(at), 0);
+                    book.restoreStock(map.getLong(at + 8));
+                    restored.add(book);
+                }
+                target.restoreBooks(restored);
+                stats.snapshotBooks = count;
+                return firstSegment;
+            }
+        }
+
+        // A snapshot file mapped in SNAPSHOT_WINDOW pieces and read at long offsets. Records
+        // are 32-byte aligned, so none straddles two windows; heap strings may.
+        private class MappedSnapshot {
+            final MappedByteBuffer[] windows;
+
+            MappedSnapshot(FileChannel channel) throws IOException {
+                long size = channel.size();
+                if (size < HEADER_BYTES) {
+                    throw new IOException("Truncated inventory snapshot: " + snapshotPath);
+                }
+                windows = new MappedByteBuffer[(int) ((size + SNAPSHOT_WINDOW - 1) / SNAPSHOT_WINDOW)];
+                for (int i = 0; i < windows.length; i++) {
+                    long start = i * SNAPSHOT_WINDOW;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SNAPSHOT_WINDOW, size - start));
+                }
+            }
+
+            long getLong(long at) { return window(at).getLong(offset(at)); }
+            int getInt(long at) { return window(at).getInt(offset(at)); }
+            double getDouble(long at) { return window(at).getDouble(offset(at)); }
+
+            void get(long at, byte[] into, int length) {
+                for (int done = 0; done < length; ) {
+                    MappedByteBuffer window = window(at + done);
+                    int offset = offset(at + done);
+                    int piece = Math.min(length - done, window.limit() - offset);
+                    window.get(offset, into, done, piece);
+                    done += piece;
+                }
+            }
+
+            private MappedByteBuffer window(long at) {
+                return windows[(int) (at >>> SNAPSHOT_WINDOW_BITS)];
+            }
+
+            private int offset(long at) {
+                return (int) (at & (SNAPSHOT_WINDOW - 1));
+            }
+        }
+
+        // Applies every intact record of one segment. A torn or corrupt record (a crash in the
+        // middle of a write) ends that segment; later segments are still replayed.
+        private long replay(LocalInventory target, Path path) throws IOException {
+            long applied = 0;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                CRC32 check = new CRC32();
+                while (map.remaining() >= 4) {
+                    int start = map.position();
+                    int length = map.getInt();
+                    if (length <= 0 || map.remaining() < length + 4) {
+                        break;
+                    }
+                    ByteBuffer body = map.slice(map.position(), length);
+                    check.reset();
+                    check.update(body.duplicate());
+                    if ((int) check.getValue() != map.getInt(start + 4 + length)) {
+                        System.err.println("Inventory log " + path + ": bad record at " + start + ", skipping rest of segment");
+                        break;
+                    }
+                    apply(target, body);
+                    map.position(start + 4 + length + 4);
+                    applied++;
+                }
+            }
+            return applied;
+        }
+
+        private void apply(LocalInventory target, ByteBuffer body) throws IOException {
+            byte type = body.get();
+            int id = body.getInt();
+            if (type == ADD_BOOK) {
+                double price = body.getDouble();
+                long word = body.getLong();
+                String title = readString(body);
+                String author = readString(body);
+                if (id == target.size()) {
+                    Book book = new Book(title, author, price, 0);
+                    book.restoreStock(word);
+                    target.restoreBooks(List.of(book));
+                } else if (id > target.size()) {
+                    throw new IOException("Inventory log is missing books " + target.size() + ".." + (id - 1));
+                }
+            } else if (type == SET_STOCK) {
+                long word = body.getLong();
+                Book book = target.getBook(id);
+                if (book != null && newerStock(word, book.getStockWord())) {
+                    book.restoreStock(word);
+                }
+            } else {
+                throw new IOException("Unknown inventory log record type " + type);
+            }
+        }
+
+        private String readString(ByteBuffer body) {
+            byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // --- Logging ---
+
+        // Starts logging every change made to the inventory and checkpointing periodically.
+        public void attach(Inventory target) throws IOException {
+            inventory = target;
+            segment = openSegment(segmentNumber);
+            running = true;
+            writer = new Thread(this::writeLoop, "inventory-wal");
+            writer.setDaemon(true);
+            writer.start();
+            target.addListener(this);
+            checkpoints.scheduleWithFixedDelay(this::checkpointQuietly,
+                    CHECKPOINT_MINUTES, CHECKPOINT_MINUTES, TimeUnit.MINUTES);
+        }
+
+        @Override
+        public void bookAdded(Book book) {
+            enqueue(book);
+        }
+
+        @Override
+        public void stockChanged(Book book, int delta, int stock, int version) {
+            enqueue(new StockRecord(book.getId(), stock, version));
+        }
+
+        // Lock-free hand-off to the writer. If the writer falls a full queue behind, producers
+        // back off until it catches up, which bounds the memory held by unwritten records.
+        private void enqueue(Object entry) {
+            while (pending.get() >= QUEUE_CAPACITY && running) {
+                LockSupport.parkNanos(50_000);
+            }
+            pending.incrementAndGet();
+            queue.offer(entry);
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        // Blocks until everything logged so far is on disk.
+        public void sync() throws IOException {
+            await(new Marker(false));
+        }
+
+        private Marker await(Marker marker) throws IOException {
+            enqueue(marker);
+            try {
+                marker.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the inventory log");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return marker;
+        }
+
+        private void writeLoop() {
+            ArrayList<Object> batch = new ArrayList<>(MAX_BATCH);
+            while (running || !queue.isEmpty()) {
+                Object entry;
+                while (batch.size() < MAX_BATCH && (entry = queue.poll()) != null) {
+                    batch.add(entry);
+                }
+                if (batch.isEmpty()) {
+                    writerParked = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.parkNanos(1_000_000);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+                boolean lost = false;
+                try {
+                    batchStart = segment.size();
+                    batchStartBytes = segmentBytes;
+                    writeBatch(batch);
+                    failure = null;
+                } catch (IOException e) {
+                    failure = e;
+                    lost = true;
+                    buffer.clear();
+                    unforced = false;
+                    System.err.println("Inventory log write failed: " + e);
+                    discardTornBatch();
+                }
+                for (Object done : batch) {
+                    if (done instanceof Marker) {
+                        ((Marker) done).done.countDown();
+                    }
+                }
+                pending.addAndGet(-batch.size());
+                batch.clear();
+                // A lost batch is only on disk again once a snapshot covers it.
+                if ((lost || segmentBytes > CHECKPOINT_BYTES) && running && checkpointScheduled.compareAndSet(false, true)) {
+                    checkpoints.execute(this::checkpointQuietly);
+                }
+            }
+        }
+
+        // Cuts the segment back to where the failed batch started, so records logged after it
+        // aren't stranded behind a torn one that replay would stop at. If the segment can't be
+        // cut, logging carries on in a new one.
+        private void discardTornBatch() {
+            try {
+                segment.truncate(batchStart);
+                segmentBytes = batchStartBytes;
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not truncate " + segmentPath(segmentNumber) + ": " + e);
+            }
+            try {
+                segment.close();
+            } catch (IOException e) {
+                // moving on to a new segment either way
+            }
+            segmentNumber++;
+            segmentBytes = 0;
+            try {
+                segment = openSegment(segmentNumber);
+            } catch (IOException e) {
+                System.err.println("Could not open " + segmentPath(segmentNumber) + ": " + e); // retried next batch
+            }
+        }
+
+        // Encodes the batch and makes it durable with one fsync; a rotation marker forces
+        // what came before it into the old segment first.
+        private void writeBatch(List<Object> batch) throws IOException {
+            for (Object entry : batch) {
+                if (entry instanceof Book) {
+                    encodeAdd((Book) entry);
+                } else if (entry instanceof StockRecord) {
+                    StockRecord record = (StockRecord) entry;
+                    int start = begin(1 + 4 + 8);
+                    buffer.put(SET_STOCK).putInt(record.id)
+                            .putLong((long) record.version << 32 | (record.stock & 0xFFFFFFFFL));
+                    end(start);
+                } else if (((Marker) entry).rotate) {
+                    flush();
+                    segment.close();
+                    segmentNumber++;
+                    segment = openSegment(segmentNumber);
+                    segmentBytes = 0;
+                    batchStart = 0;
+                    batchStartBytes = 0;
+                    ((Marker) entry).newSegment = segmentNumber;
+                }
+            }
+            flush();
+        }
+
+        private void encodeAdd(Book book) throws IOException {
+            byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+            byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+            int start = begin(1 + 4 + 8 + 8 + 4 + title.length + 4 + author.length);
+            buffer.put(ADD_BOOK).putInt(book.getId()).putDouble(book.getPrice()).putLong(book.getStockWord());
+            buffer.putInt(title.length).put(title).putInt(author.length).put(author);
+            end(start);
+        }
+
+        // Reserves room for a record of the given body length and writes its length prefix.
+        private int begin(int bodyLength) throws IOException {
+            if (buffer.remaining() < bodyLength + 8) {
+                flushBuffer();
+                if (buffer.capacity() < bodyLength + 8) {
+                    buffer = ByteBuffer.allocateDirect(bodyLength + 8);
+                }
+            }
+            buffer.putInt(bodyLength);
+            return buffer.position();
+        }
+
+        private void end(int bodyStart) {
+            crc.reset();
+            crc.update(buffer.duplicate().position(bodyStart).limit(buffer.position()));
+            buffer.putInt((int) crc.getValue());
+        }
+
+        private void flush() throws IOException {
+            flushBuffer();
+            if (unforced) {
+                segment.force(false);
+                unforced = false;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            unforced |= buffer.hasRemaining();
+            while (buffer.hasRemaining()) {
+                segmentBytes += segment.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private FileChannel openSegment(long number) throws IOException {
+            return FileChannel.open(segmentPath(number),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        private Path segmentPath(long number) {
+            return dir.resolve(String.format("inventory-%016d.wal", number));
+        }
+
+        private List<Long> segments() throws IOException {
+            ArrayList<Long> numbers = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "inventory-*.wal")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    numbers.add(Long.parseLong(name.substring("inventory-".length(), name.length() - ".wal".length())));
+                }
+            }
+            Collections.sort(numbers);
+            return numbers;
+        }
+
+        // --- Checkpoints ---
+
+        // Starts a new log segment, snapshots the inventory as of now and drops the old segments.
+        public synchronized void checkpoint() throws IOException {
+            if (writer == null) {
+                throw new IllegalStateException("Inventory store is not attached");
+            }
+            long firstSegment = await(new Marker(true)).newSegment;
+            writeSnapshot(firstSegment);
+            for (long number : segments()) {
+                if (number < firstSegment) {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+            }
+        }
+
+        private void checkpointQuietly() {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Inventory checkpoint failed: " + e);
+            } finally {
+                checkpointScheduled.set(false);
+            }
+        }
+
+        // Record table and string heap are written through two positional buffers in one pass;
+        // the file is renamed into place only once it is complete and on disk.
+        private void writeSnapshot(long firstSegment) throws IOException {
+            Path temp = dir.resolve("inventory.snapshot.tmp");
+            int count = inventory.size();
+            long heapStart = HEADER_BYTES + (long) count * RECORD_BYTES;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putLong(SNAPSHOT_MAGIC).putInt(count).putInt(0).putLong(firstSegment).putLong(heapStart).flip();
+                out.write(header, 0);
+
+                ByteBuffer records = ByteBuffer.allocateDirect(RECORD_BYTES * 4_096);
+                ByteBuffer heap = ByteBuffer.allocateDirect(1 << 20);
+                long recordsAt = HEADER_BYTES;
+                long heapAt = heapStart;
+                long heapLength = 0;
+                // Author -> {offset, length} of its single copy in the heap.
+                HashMap<String, int[]> authorSlots = new HashMap<>();
+                for (int start = 0; start < count; start += 4_096) {
+                    for (Book book : inventory.getBooks(start, Math.min(4_096, count - start))) {
+                        byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+                        int[] authorSlot = authorSlots.get(book.getAuthor());
+                        byte[] author = authorSlot == null ? book.getAuthor().getBytes(StandardCharsets.UTF_8) : null;
+                        int needed = title.length + (author == null ? 0 : author.length);
+                        if (heapLength + needed > MAX_HEAP_BYTES) {
+                            throw new IOException("Inventory snapshot strings pass " + (MAX_HEAP_BYTES >> 30) + " GB");
+                        }
+                        if (heap.remaining() < needed) {
+                            heapAt += writeFully(out, heap, heapAt);
+                            if (heap.capacity() < needed) {
+                                heap = ByteBuffer.allocateDirect(needed);
+                            }
+                        }
+                        int titleOffset = (int) heapLength;
+                        heap.put(title);
+                        heapLength += title.length;
+                        if (author != null) {
+                            authorSlot = new int[] {(int) heapLength, author.length};
+                            authorSlots.put(book.getAuthor(), authorSlot);
+                            heap.put(author);
+                            heapLength += author.length;
+                        }
+                        if (!records.hasRemaining()) {
+                            recordsAt += writeFully(out, records, recordsAt);
+                        }
+                        records.putDouble(book.getPrice()).putLong(book.getStockWord())
+                                .putInt(titleOffset).putInt(title.length)
+                                .putInt(authorSlot[0]).putInt(authorSlot[1]);
+                    }
+                }
+                writeFully(out, records, recordsAt);
+                writeFully(out, heap, heapAt);
+                out.force(true);
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            int written = 0;
+            while (buffer.hasRemaining()) {
+                written += out.write(buffer, position + written);
+            }
+            buffer.clear();
+            return written;
+        }
+
+        // Final checkpoint, then stops the writer.
+        public void close() throws IOException {
+            try {
+                checkpoint();
+            } finally {
+                stop();
+            }
+        }
+
+        // Stops logging without a checkpoint; whatever was queued is still written first.
+        void stop() throws IOException {
+            checkpoints.shutdownNow();
+            if (inventory != null) {
+                inventory.removeListener(this);
+            }
+            running = false;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    // --- Inventory Store Benchmark ---
+    // Measures logged mutation throughput, checkpoint time and crash recovery time (snapshot
+    // load plus log tail replay) for a synthetic catalog in a temporary directory.
+    // Run with: java BookstoreSystem.java bench-store [books] [threads]
+    class InventoryStoreBenchmark {
+        private static final int MUTATIONS_PER_THREAD = 200_000;
+        private static final int TAIL_MUTATIONS = 100_000;
+
+        public void run(int size, int threads) throws Exception {
+            Path dir = Files.createTempDirectory("readnest-store");
+            try {
+                LocalInventory inventory = new LocalInventory();
+                InventoryStore store = new InventoryStore(dir);
+                store.recover(inventory);
+                store.attach(inventory);
+                Random random = new Random(7);
+                String[] authors = new String[Math.max(1, size / 20)];
+                for (int i = 0; i < authors.length; i++) {
+                    authors[i] = "Author " + i;
+                }
+                ArrayList<Book> batch = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    batch.add(new Book("Synthetic Title " + i, authors[random.nextInt(authors.length)],
+                            100 + random.nextInt(900), 1_000));
+                }
+                long start = System.nanoTime();
+                inventory.addBooks(batch);
+                store.sync();
+                System.out.printf("Loaded and logged %,d books: %d ms%n", size, millisSince(start));
+
+                start = System.nanoTime();
+                store.checkpoint();
+                System.out.printf("Checkpoint: %d ms, snapshot %,d bytes%n",
+                        millisSince(start), Files.size(dir.resolve("inventory.snapshot")));
+
+                Thread[] workers = new Thread[threads];
+                start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    workers[t] = new Thread(() -> {
+                        ThreadLocalRandom r = ThreadLocalRandom.current();
+                        for (int i = 0; i < MUTATIONS_PER_THREAD; i++) {
+                            Book book = inventory.getBook(r.nextInt(size));
+                            if (inventory.reserve(book, 1)) {
+                                inventory.release(book, 1);
+                            }
+                        }
+                    });
+                    workers[t].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                store.sync();
+                long elapsed = System.nanoTime() - start;
+                long mutations = 2L * MUTATIONS_PER_THREAD * threads;
+                System.out.printf("Logged mutations (%d threads): %,.0f /s, durable%n",
+                        threads, mutations * 1_000_000_000.0 / elapsed);
+
+                store.checkpoint();
+                for (int i = 0; i < TAIL_MUTATIONS; i++) {
+                    inventory.setStock(inventory.getBook(random.nextInt(size)), random.nextInt(50));
+                }
+                // Simulated crash: the log tail is on disk but no final checkpoint is taken.
+                store.sync();
+                store.stop();
+
+                LocalInventory recovered = new LocalInventory();
+                InventoryStore.RecoveryStats stats = new InventoryStore(dir).recover(recovered);
+                System.out.printf("Recovery: snapshot %,d books in %d ms, replayed %,d records in %d ms%n",
+                        stats.snapshotBooks, stats.snapshotMillis, stats.replayedRecords, stats.replayMillis);
+                for (int i = 0; i < size; i++) {
+                    if (recovered.getBook(i).getStock() != inventory.getBook(i).getStock()) {
+                        throw new IllegalStateException("Recovered stock differs for book " + i);
+                    }
+                }
+                System.out.println("Recovered stock matches.");
+            } finally {
+                try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(dir);
+            }
+        }
+
+        private long millisSince(long start) {
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+    }
+
+    // --- Timer Wheel ---
+    // Hierarchical timing wheel, as used for kernel timers. There are LEVELS wheels of 64 slots,
+    // and each slot is a doubly linked list threaded through the timeouts themselves. A level 0
+    // slot is one tick wide, a level 1 slot 64 ticks, and so on. A timeout goes into the finest
+    // level that can still tell its deadline apart from now, and drops a level whenever the wheel
+    // above turns onto its slot. Scheduling, re-arming and cancelling are O(1) and allocate
+    // nothing; advancing costs one step per tick plus at most LEVELS - 1 moves per timeout.
+    class TimerWheel {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int LEVELS = 4;
+        // Timeouts further out than this (~194 days of one-second ticks) wait in the top
+        // level and are re-filed each time it comes round.
+        private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+        private final long tickNanos;
+        private final long origin = System.nanoTime();
+        private final Timeout[] slots = new Timeout[LEVELS * SLOTS];
+        private long tick; // next tick to expire
+        private int size;
+
+        // An entry in the wheel; subclasses say what happens when it fires.
+        static class Timeout {
+            long deadline;
+            Timeout prev;
+            Timeout next;
+
+            void expire() {
+            }
+        }
+
+        TimerWheel(long tickMillis) {
+            tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            for (int i = 0; i < slots.length; i++) {
+                Timeout head = new Timeout();
+                head.prev = head;
+                head.next = head;
+                slots[i] = head;
+            }
+        }
+
+        long nowTick() {
+            return (System.nanoTime() - origin) / tickNanos;
+        }
+
+        // Arms timeout to fire delayMillis from now (rounded up to whole ticks), moving it
+        // if it was already armed.
+        public synchronized void schedule(Timeout timeout, long delayMillis) {
+            if (timeout.next != null) {
+                unlink(timeout);
+            } else {
+                size++;
+            }
+            long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+            timeout.deadline = nowTick() + ticks;
+            insert(timeout);
+        }
+
+        // Disarms timeout; returns false if it wasn't armed (already fired or never scheduled).
+        public synchronized boolean cancel(Timeout timeout) {
+            if (timeout.next == null) {
+                return false;
+            }
+            unlink(timeout);
+            size--;
+            return true;
+        }
+
+        public synchronized boolean isScheduled(Timeout timeout) {
+            return timeout.next != null;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public List<Timeout> advance() {
+            return advanceTo(nowTick());
+        }
+
+        // Moves the wheel through every tick up to and including target and returns the
+        // timeouts that fell due, already disarmed, for the caller to run outside the lock.
+        synchronized List<Timeout> advanceTo(long target) {
+            ArrayList<Timeout> expired = new ArrayList<>();
+            while (tick <= target) {
+                if (size == 0) {
+                    tick = target + 1; // nothing to cascade or expire on the way
+                    break;
+                }
+                // When a wheel wraps, the next slot of the wheel above is spread over the ones below.
+                int index = (int) (tick & (SLOTS - 1));
+                for (int level = 1; index == 0 && level < LEVELS; level++) {
+                    index = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                    for (Timeout timeout : detach(slots[level * SLOTS + index])) {
+                        insert(timeout);
+                    }
+                }
+                for (Timeout timeout : detach(slots[(int) (tick & (SLOTS - 1))])) {
+                    timeout.prev = null;
+                    timeout.next = null;
+                    size--;
+                    expired.add(timeout);
+                }
+                tick++;
+            }
+            return expired;
+        }
+
+        // Disarms and returns everything still armed, e.g. to settle up at shutdown.
+        public synchronized List<Timeout> drain() {
+            ArrayList<Timeout> all = new ArrayList<>(size);
+            for (Timeout head : slots) {
+                for (Timeout timeout : detach(head)) {
+                    timeout.prev = null;
+                    timeout.next = null;
+                    all.add(timeout);
+                }
+            }
+            size = 0;
+            return all;
+        }
+
+        private void insert(Timeout timeout) {
+            long delta = Math.min(timeout.deadline - tick, SPAN - 1);
+            long at = tick + delta;
+            int level = 0;
+            while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            Timeout head = slots[level * SLOTS + (int) ((at >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+            timeout.prev = head.prev;
+            timeout.next = head;
+            head.prev.next = timeout;
+            head.prev = timeout;
+        }
+
+        private void unlink(Timeout timeout) {
+            timeout.prev.next = timeout.next;
+            timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        // Empties one slot, returning its timeouts (their links are left for the caller to reset).
+        private List<Timeout> detach(Timeout head) {
+            if (head.next == head) {
+                return Collections.emptyList();
+            }
+            ArrayList<Timeout> list = new ArrayList<>();
+            for (Timeout timeout = head.next; timeout != head; timeout = timeout.next) {
+                list.add(timeout);
+            }
+            head.prev = head;
+            head.next = head;
+            return list;
+        }
+    }
+
+    // --- Reservations ---
+    // Copies in a cart are held rather than sold. Adding a book takes the copies out of stock
+    // and (re)starts a time limit on that cart line. Checkout confirms the hold, and a line left
+    // alone past the limit is dropped from its cart and its copies go back on sale. Each hold
+    // is its own entry in a TimerWheel driven by one sweeper thread, so millions of outstanding
+    // holds cost one small object each and no threads or Timer tasks.
+    // The cart stays the source of truth: a hold that fires after its line was re-armed,
+    // removed or checked out sees that under the cart's lock and leaves the line alone.
+    class Reservations {
+        private final Inventory inventory;
+        private final long ttlMillis;
+        private final long tickMillis;
+        private final TimerWheel wheel;
+        private final LongAdder heldUnits = new LongAdder();
+        private final LongAdder confirmedUnits = new LongAdder();
+        private final LongAdder droppedUnits = new LongAdder();
+        private final LongAdder reclaimedUnits = new LongAdder();
+        private final LongAdder expiredHolds = new LongAdder();
+        private final CopyOnWriteArrayList<SalesListener> salesListeners = new CopyOnWriteArrayList<>();
+        private Thread sweeper;
+
+        Reservations(Inventory inventory, long ttlMillis, long tickMillis) {
+            this.inventory = inventory;
+            this.ttlMillis = ttlMillis;
+            this.tickMillis = tickMillis;
+            this.wheel = new TimerWheel(tickMillis);
+        }
+
+        // The hold on one cart line.
+        class Hold extends TimerWheel.Timeout {
+            final Cart cart;
+            final Book book;
+
+            Hold(Cart cart, Book book) {
+                this.cart = cart;
+                this.book = book;
+            }
+
+            @Override
+            void expire() {
+                int reclaimed;
+                synchronized (cart) {
+                    CartLine line = cart.getLine(book);
+                    if (line == null || line.hold != this || wheel.isScheduled(this)) {
+                        return;
+                    }
+                    reclaimed = cart.removeBook(book, line.getQuantity());
+                }
+                inventory.release(book, reclaimed);
+                reclaimedUnits.add(reclaimed);
+                expiredHolds.increment();
+            }
+        }
+
+        public void start() {
+            sweeper = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sweep(wheel.nowTick());
+                    try {
+                        Thread.sleep(tickMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "reservation-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+
+        // Stops the sweeper and puts every outstanding hold back in stock.
+        public void close() throws InterruptedException {
+            if (sweeper != null) {
+                sweeper.interrupt();
+                sweeper.join();
+            }
+            // A Ctrl-C reaches shard workers too, so some may already be gone; their copies
+            // went with them, and the rest still go back.
+            int unreturned = 0;
+            for (TimerWheel.Timeout hold : wheel.drain()) {
+                try {
+                    hold.expire();
+                } catch (UncheckedIOException e) {
+                    unreturned++;
+                }
+            }
+            if (unreturned > 0) {
+                System.err.println(unreturned + " held line(s) could not go back on sale: shard worker gone");
+            }
+        }
+
+        // Expires every hold due by the given wheel tick; returns how many fell due.
+        int sweep(long tick) {
+            List<TimerWheel.Timeout> due = wheel.advanceTo(tick);
+            for (TimerWheel.Timeout hold : due) {
+                hold.expire();
+            }
+            return due.size();
+        }
+
+        // Takes quantity copies out of stock into the cart and restarts the line's time limit.
+        // Returns false, changing nothing, if there aren't enough copies.
+        public boolean hold(Cart cart, Book book, int quantity) {
+            if (!inventory.reserve(book, quantity)) {
+                return false;
+            }
+            synchronized (cart) {
+                track(cart, book, quantity, true);
+            }
+            return true;
+        }
+
+        // hold for copies the shopper had already added, such as a spilled session's cart
+        // coming back. Sales listeners aren't told, so the add isn't counted twice.
+        public boolean restore(Cart cart, Book book, int quantity) {
+            if (!inventory.reserve(book, quantity)) {
+                return false;
+            }
+            synchronized (cart) {
+                track(cart, book, quantity, false);
+            }
+            return true;
+        }
+
+        // hold for several titles at once, all or nothing. The copies are taken in one
+        // Inventory.reserveAll, which a ShardedInventory commits across shards with two-phase
+        // commit, so a shopper never ends up with some of the titles held and not others.
+        // Books must be distinct.
+        public boolean holdAll(Cart cart, List<Book> books, int[] quantities) {
+            if (!inventory.reserveAll(books, quantities)) {
+                return false;
+            }
+            synchronized (cart) {
+                for (int i = 0; i < books.size(); i++) {
+                    track(cart, books.get(i), quantities[i], true);
+                }
+            }
+            return true;
+        }
+
+        // Puts reserved copies in the cart and (re)starts the line's time limit, telling sales
+        // listeners if publish. Callers hold the cart's lock.
+        private void track(Cart cart, Book book, int quantity, boolean publish) {
+            place(cart, book, quantity);
+            heldUnits.add(quantity);
+            if (publish) {
+                for (SalesListener listener : salesListeners) {
+                    listener.addedToCart(book, quantity);
+                }
+            }
+        }
+
+        // Takes up to quantity copies out of the cart and back into stock; returns how many.
+        public int drop(Cart cart, Book book, int quantity) {
+            int removed;
+            synchronized (cart) {
+                CartLine line = cart.getLine(book);
+                if (line == null) {
+                    return 0;
+                }
+                removed = cart.removeBook(book, quantity);
+                if (cart.getLine(book) == null && line.hold != null) {
+                    wheel.cancel(line.hold);
+                }
+            }
+            if (removed > 0) {
+                inventory.release(book, removed);
+                droppedUnits.add(removed);
+            }
+            return removed;
+        }
+
+        // Checkout: the held copies become sold and the cart is emptied. Returns the lines
+        // that were confirmed, which is empty if every hold had already run out.
+        public List<CartLine> confirm(Cart cart) {
+            synchronized (cart) {
+                ArrayList<CartLine> lines = new ArrayList<>(cart.getLines());
+                for (CartLine line : lines) {
+                    if (line.hold != null) {
+                        wheel.cancel(line.hold);
+                    }
+                    confirmedUnits.add(line.getQuantity());
+                }
+                cart.clear();
+                return lines;
+            }
+        }
+
+        // Undoes confirm for an order that couldn't be recorded. The lines go back into the
+        // cart as holds with a fresh time limit, their copies still out of stock.
+        public void unconfirm(Cart cart, List<CartLine> lines) {
+            synchronized (cart) {
+                for (CartLine line : lines) {
+                    place(cart, line.getBook(), line.getQuantity());
+                    confirmedUnits.add(-line.getQuantity());
+                }
+            }
+        }
+
+        // Puts copies already out of stock in the cart and (re)starts the line's time limit.
+        // Callers hold the cart's lock.
+        private void place(Cart cart, Book book, int quantity) {
+            cart.addBook(book, quantity);
+            CartLine line = cart.getLine(book);
+            if (line.hold == null) {
+                line.hold = new Hold(cart, book);
+            }
+            wheel.schedule(line.hold, ttlMillis);
+        }
+
+        public long getTtlMillis() { return ttlMillis; }
+        public int getOutstandingHolds() { return wheel.size(); }
+        public void addSalesListener(SalesListener listener) { salesListeners.add(listener); }
+
+        public long getHeldUnits() { return heldUnits.sum(); }
+        public long getConfirmedUnits() { return confirmedUnits.sum(); }
+        public long getDroppedUnits() { return droppedUnits.sum(); }
+        public long getReclaimedUnits() { return reclaimedUnits.sum(); }
+        public long getExpiredHolds() { return expiredHolds.sum(); }
+    }
+
+    // --- Reservation Sweep Benchmark ---
+    // Places holds across many carts, re-arms them all, then moves the wheel past their time
+    // limit and checks that every copy came back to stock.
+    // Run with: java BookstoreSystem.java bench-holds [holds]
+    class ReservationSweepBenchmark {
+        private static final int LINES_PER_CART = 8;
+        private static final int BOOKS = 10_000;
+        private static final int STOCK = 1_000_000;
+
+        public void run(int holds) {
+            Inventory inventory = new LocalInventory();
+            for (int i = 0; i < BOOKS; i++) {
+                inventory.addBook(new Book("Held Title " + i, "Author " + (i % 100), 100 + i % 900, STOCK));
+            }
+            Reservations reservations = new Reservations(inventory, TimeUnit.MINUTES.toMillis(15), 1_000);
+            Cart[] carts = new Cart[(holds + LINES_PER_CART - 1) / LINES_PER_CART];
+            for (int c = 0; c < carts.length; c++) {
+                carts[c] = new Cart();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < holds; i++) {
+                reservations.hold(carts[i / LINES_PER_CART], inventory.getBook(i % BOOKS), 1);
+            }
+            report("Place holds", holds, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < holds; i++) {
+                reservations.hold(carts[i / LINES_PER_CART], inventory.getBook(i % BOOKS), 1);
+            }
+            report("Re-arm holds", holds, start);
+            System.out.printf("Outstanding holds: %,d%n", reservations.getOutstandingHolds());
+
+            long past = reservations.wheel.nowTick() + TimeUnit.MINUTES.toSeconds(15) + 1;
+            start = System.nanoTime();
+            int expired = reservations.sweep(past);
+            report("Expire holds", expired, start);
+            System.out.printf("Reclaimed %,d units from %,d holds%n",
+                    reservations.getReclaimedUnits(), reservations.getExpiredHolds());
+            for (int id = 0; id < inventory.size(); id++) {
+                Book book = inventory.getBook(id);
+                if (book.getStock() != STOCK) {
+                    throw new IllegalStateException("Stock not restored for " + book.getTitle());
+                }
+            }
+            System.out.println("All stock restored.");
+        }
+
+        private void report(String label, int operations, long start) {
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-14s %,12d in %6d ms  (%,.0f ns each)%n", label, operations,
+                    elapsed / 1_000_000, (double) elapsed / Math.max(1, operations));
+        }
+    }
+
+    // --- Order Pipeline ---
+    // Checkout hands the cart to a bounded queue and returns at once. One committer thread
+    // takes whatever orders have queued up, up to maxBatch. For each order it confirms the
+    // cart's holds, which turns held copies into sold ones, or rejects the order if the holds
+    // have run out. It then appends the whole batch to the order log with a single fsync
+    // (group commit), and finally calls each order's callback on the committer thread. When
+    // the queue is full, submit() blocks and trySubmit() refuses, so a flood of checkouts
+    // slows the shoppers down rather than piling up without limit.
+    // Log record: length:int orderId:long timeMillis:long totalPaise:long customer:string
+    //             lineCount:int lineCount x [bookId:int quantity:int pricePaise:long] crc32:int
+    class OrderPipeline {
+        private final Reservations reservations;
+        private final Path logPath;
+        private final int maxBatch;
+        private final ArrayBlockingQueue<Order> queue;
+        private final LongAdder committedOrders = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private volatile boolean running;
+        private final CopyOnWriteArrayList<SalesListener> salesListeners = new CopyOnWriteArrayList<>();
+        private Thread committer;
+        // Owned by the committer thread.
+        private FileChannel log;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final CRC32 crc = new CRC32();
+        private long nextOrderId = 1;
+
+        enum Status { PENDING, COMMITTED, REJECTED, FAILED }
+
+        class Order {
+            private final String customer;
+            private final Cart cart;
+            private final Consumer<Order> callback;
+            private volatile Status status = Status.PENDING;
+            private long id;
+            private List<CartLine> lines = Collections.emptyList();
+            private long totalPaise;
+            private String problem;
+
+            Order(String customer, Cart cart, Consumer<Order> callback) {
+                this.customer = customer;
+                this.cart = cart;
+                this.callback = callback;
+            }
+
+            public Status getStatus() { return status; }
+            public long getId() { return id; }
+            public String getCustomer() { return customer; }
+            public List<CartLine> getLines() { return lines; }
+            public long getTotalPaise() { return totalPaise; }
+            public String getProblem() { return problem; }
+
+            public int getItemCount() {
+                int items = 0;
+                for (CartLine line : lines) {
+                    items += line.getQuantity();
+                }
+                return items;
+            }
+        }
+
+        OrderPipeline(Reservations reservations, Path logPath, int capacity, int maxBatch) {
+            this.reservations = reservations;
+            this.logPath = logPath;
+            this.maxBatch = maxBatch;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        // Opens the order log, dropping a torn record left by a crash, and starts committing.
+        public void start() throws IOException {
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long end = scanLog();
+            log.truncate(end);
+            log.position(end);
+            running = true;
+            committer = new Thread(this::commitLoop, "order-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+
+        // Queues the cart's checkout, waiting for room if the queue is full.
+        public Order submit(String customer, Cart cart, Consumer<Order> callback) throws InterruptedException {
+            Order order = new Order(customer, cart, callback);
+            queue.put(order);
+            return order;
+        }
+
+        // Queues the cart's checkout, or returns null straight away if the queue is full.
+        public Order trySubmit(String customer, Cart cart, Consumer<Order> callback) {
+            Order order = new Order(customer, cart, callback);
+            return queue.offer(order) ? order : null;
+        }
+
+        // Commits everything already queued, then stops.
+        public void close() throws IOException, InterruptedException {
+            running = false;
+            if (committer != null) {
+                committer.join();
+                log.close();
+            }
+        }
+
+        public void addSalesListener(SalesListener listener) { salesListeners.add(listener); }
+
+        public long getCommittedOrders() { return committedOrders.sum(); }
+        public long getBatches() { return batches.sum(); }
+
+        // Reads the log through a stream rather than one mapping, which would stop at 2 GB.
+        private long scanLog() throws IOException {
+            long size = log.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0)), 1 << 16));
+            CRC32 check = new CRC32();
+            byte[] record = new byte[256];
+            long end = 0;
+            while (size - end >= 4) {
+                int length = in.readInt();
+                if (length < 8 || size - end - 8 < length) {
+                    break;
+                }
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                in.readFully(record, 0, length);
+                int stored = in.readInt();
+                check.reset();
+                check.update(record, 0, length);
+                if ((int) check.getValue() != stored) {
+                    break;
+                }
+                nextOrderId = ByteBuffer.wrap(record).getLong(0) + 1;
+                end += 4 + length + 4;
+            }
+            if (end < size) {
+                System.err.println("Order log " + logPath + ": dropping " + (size - end) + " bytes of incomplete record");
+            }
+            return end;
+        }
+
+        private void commitLoop() {
+            ArrayList<Order> batch = new ArrayList<>(maxBatch);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Order first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    continue; // close() decides when to stop; finish what's queued
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                commit(batch);
+                batch.clear();
+            }
+        }
+
+        private void commit(List<Order> batch) {
+            long start = System.nanoTime();
+            buffer.clear();
+            long firstId = nextOrderId;
+            long end = -1; // log length before this batch, once known
+            ArrayList<Order> accepted = new ArrayList<>(batch.size());
+            for (Order order : batch) {
+                order.lines = reservations.confirm(order.cart);
+                if (order.lines.isEmpty()) {
+                    order.problem = "The cart was empty or its holds had run out";
+                    continue;
+                }
+                for (CartLine line : order.lines) {
+                    order.totalPaise += line.getSubtotalPaise();
+                }
+                order.id = nextOrderId++;
+                encode(order);
+                accepted.add(order);
+            }
+            try {
+                if (!accepted.isEmpty()) {
+                    end = log.position();
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        log.write(buffer);
+                    }
+                    log.force(false);
+                }
+                for (Order order : accepted) {
+                    order.status = Status.COMMITTED;
+                }
+                committedOrders.add(accepted.size());
+                for (Order order : accepted) {
+                    for (SalesListener listener : salesListeners) {
+                        listener.orderCommitted(order);
+                    }
+                }
+            } catch (IOException e) {
+                // Cut off whatever part of the batch did reach the log, so the next batch isn't
+                // written after a torn record that recovery would stop at.
+                try {
+                    if (end >= 0) {
+                        log.truncate(end);
+                        log.position(end);
+                    }
+                } catch (IOException truncateFailed) {
+                    System.err.println("Order log " + logPath + ": could not drop failed batch: " + truncateFailed);
+                }
+                nextOrderId = firstId;
+                // Not recorded, so not sold: the copies go back into the shopper's cart, still
+                // held, so a retry can go through once the disk recovers.
+                for (Order order : accepted) {
+                    reservations.unconfirm(order.cart, order.lines);
+                    order.problem = "Could not record the order; the cart is unchanged: " + e.getMessage();
+                    order.status = Status.FAILED;
+                }
+            }
+            batches.increment();
+            metrics.orderBatch.record(System.nanoTime() - start);
+            for (Order order : batch) {
+                if (order.status == Status.PENDING) {
+                    order.status = Status.REJECTED;
+                }
+                if (order.callback != null) {
+                    order.callback.accept(order);
+                }
+            }
+        }
+
+        private void encode(Order order) {
+            byte[] customer = order.customer.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + 8 + 8 + 4 + customer.length + 4 + order.lines.size() * 16;
+            if (buffer.remaining() < length + 8) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length + 8));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+            int start = buffer.position();
+            buffer.putInt(length).putLong(order.id).putLong(System.currentTimeMillis()).putLong(order.totalPaise)
+                    .putInt(customer.length).put(customer).putInt(order.lines.size());
+            for (CartLine line : order.lines) {
+                buffer.putInt(line.getBook().getId()).putInt(line.getQuantity()).putLong(line.getBook().getPricePaise());
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + 4, length);
+            buffer.putInt((int) crc.getValue());
+        }
+    }
+
+    // --- Order Pipeline Benchmark ---
+    // Shoppers on several threads fill carts and check out as fast as they can, once per batch
+    // size; reports committed orders per second and the average batch the committer saw.
+    // Run with: java BookstoreSystem.java bench-orders [orders]
+    class OrderPipelineBenchmark {
+        private static final int SHOPPERS = 8;
+        private static final int QUEUE_CAPACITY = 1_024;
+        private final int[] batchSizes = {1, 8, 64, 512};
+
+        public void run(int orders) throws Exception {
+            Inventory inventory = new LocalInventory();
+            for (int i = 0; i < 10_000; i++) {
+                inventory.addBook(new Book("Ordered Title " + i, "Author " + (i % 100), 100 + i % 900, Integer.MAX_VALUE / 2));
+            }
+            Reservations reservations = new Reservations(inventory, TimeUnit.MINUTES.toMillis(15), 1_000);
+            System.out.printf("%-10s %12s %12s%n", "batch", "orders/s", "avg batch");
+            for (int maxBatch : batchSizes) {
+                Path logPath = Files.createTempFile("readnest-orders", ".log");
+                try {
+                    OrderPipeline pipeline = new OrderPipeline(reservations, logPath, QUEUE_CAPACITY, maxBatch);
+                    pipeline.start();
+                    int perShopper = orders / SHOPPERS;
+                    CountDownLatch done = new CountDownLatch(perShopper * SHOPPERS);
+                    Thread[] shoppers = new Thread[SHOPPERS];
+                    long start = System.nanoTime();
+                    for (int s = 0; s < SHOPPERS; s++) {
+                        shoppers[s] = new Thread(() -> {
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            try {
+                                for (int i = 0; i < perShopper; i++) {
+                                    Cart cart = new Cart();
+                                    for (int line = 0; line < 3; line++) {
+                                        reservations.hold(cart, inventory.getBook(random.nextInt(10_000)), 1);
+                                    }
+                                    pipeline.submit("Shopper", cart, order -> done.countDown());
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        });
+                        shoppers[s].start();
+                    }
+                    done.await();
+                    long elapsed = System.nanoTime() - start;
+                    pipeline.close();
+                    System.out.printf("%-10d %12.0f %12.1f%n", maxBatch,
+                            pipeline.getCommittedOrders() * 1_000_000_000.0 / elapsed,
+                            (double) pipeline.getCommittedOrders() / pipeline.getBatches());
+                } finally {
+                    Files.deleteIfExists(logPath);
+                }
+            }
+        }
+    }
+
+    // --- Sales Listener ---
+    // Told about every successful add-to-cart (by Reservations, on the shopper's thread) and
+    // every committed order (by OrderPipeline, on the committer thread).
+    interface SalesListener {
+        void addedToCart(Book book, int quantity);
+        void orderCommitted(OrderPipeline.Order order);
+    }
+
+    // --- Sales Analytics ---
+    // Live "bestsellers" and "bought together" in fixed memory, without keeping any orders.
+    // Shoppers only put a small event on a bounded queue, or drop it (counted) when the
+    // queue is full, so analytics can never hold up a sale. One thread folds the events
+    // into sketches:
+    //   - Space-Saving over units sold and over units carted, each keeping the topCapacity
+    //     heaviest titles with a guaranteed overestimate bound (error);
+    //   - a Count-Min sketch of units sold, for an estimate on any title;
+    //   - Space-Saving over the title pairs in each order, pairCapacity of them, which is
+    //     the co-occurrence table "bought together" reads from.
+    // Each event costs O(log capacity) for fixed capacities, so constant per event; an order
+    // of n titles counts its first MAX_PAIR_TITLES titles' pairs. Queries copy out a few
+    // hundred counters under the same lock, which takes microseconds.
+    class SalesAnalytics implements SalesListener {
+        private static final int CART = 0;
+        private static final int ORDER = 1;
+        private static final int MAX_PAIR_TITLES = 16;
+        private static final int SKETCH_DEPTH = 4;
+        private static final int SKETCH_WIDTH = 1 << 14;
+
+        private final Inventory inventory;
+        private final ArrayBlockingQueue<int[]> events;
+        private final SpaceSaving sold;
+        private final SpaceSaving carted;
+        private final SpaceSaving pairs;
+        private final long[][] soldSketch = new long[SKETCH_DEPTH][SKETCH_WIDTH];
+        private final LongAdder dropped = new LongAdder();
+        private long applied;
+        private volatile boolean running;
+        private Thread folder;
+
+        SalesAnalytics(Inventory inventory, int topCapacity, int pairCapacity, int queueCapacity) {
+            this.inventory = inventory;
+            this.events = new ArrayBlockingQueue<>(queueCapacity);
+            this.sold = new SpaceSaving(topCapacity);
+            this.carted = new SpaceSaving(topCapacity);
+            this.pairs = new SpaceSaving(pairCapacity);
+        }
+
+        // A title (or, for "bought together", the other title of a pair) with its count.
+        // The true count lies between count - error and count.
+        class Ranked {
+            public final Book book;
+            public final long count;
+            public final long error;
+
+            Ranked(Book book, long count, long error) {
+                this.book = book;
+                this.count = count;
+                this.error = error;
+            }
+        }
+
+        // Listens to both feeds and starts folding.
+        public void start(Reservations reservations, OrderPipeline orders) {
+            reservations.addSalesListener(this);
+            orders.addSalesListener(this);
+            running = true;
+            folder = new Thread(this::foldLoop, "sales-analytics");
+            folder.setDaemon(true);
+            folder.start();
+        }
+
+        public void close() throws InterruptedException {
+            running = false;
+            if (folder != null) {
+                folder.join();
+            }
+        }
+
+        @Override
+        public void addedToCart(Book book, int quantity) {
+            offer(new int[] {CART, book.getId(), quantity});
+        }
+
+        @Override
+        public void orderCommitted(OrderPipeline.Order order) {
+            List<CartLine> lines = order.getLines();
+            int[] event = new int[1 + lines.size() * 2];
+            event[0] = ORDER;
+            for (int i = 0; i < lines.size(); i++) {
+                event[1 + i * 2] = lines.get(i).getBook().getId();
+                event[2 + i * 2] = lines.get(i).getQuantity();
+            }
+            offer(event);
+        }
+
+        private void offer(int[] event) {
+            if (!events.offer(event)) {
+                dropped.increment();
+            }
+        }
+
+        private void foldLoop() {
+            ArrayList<int[]> batch = new ArrayList<>(1_024);
+            while (running || !events.isEmpty()) {
+                try {
+                    int[] first = events.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    continue; // close() decides when to stop
+                }
+                events.drainTo(batch, 1_023);
+                synchronized (this) {
+                    for (int[] event : batch) {
+                        apply(event);
+                    }
+                }
+                batch.clear();
+            }
+        }
+
+        // Folds one event into the sketches. Callers hold the lock.
+        void apply(int[] event) {
+            if (event[0] == CART) {
+                carted.add(event[1], event[2]);
+            } else {
+                int titles = (event.length - 1) / 2;
+                for (int i = 0; i < titles; i++) {
+                    int id = event[1 + i * 2];
+                    int quantity = event[2 + i * 2];
+                    sold.add(id, quantity);
+                    for (int row = 0; row < SKETCH_DEPTH; row++) {
+                        soldSketch[row][bucket(id, row)] += quantity;
+                    }
+                }
+                int paired = Math.min(titles, MAX_PAIR_TITLES);
+                for (int i = 0; i < paired; i++) {
+                    for (int j = i + 1; j < paired; j++) {
+                        int a = event[1 + i * 2];
+                        int b = event[1 + j * 2];
+                        if (a != b) {
+                            pairs.add(((long) Math.min(a, b) << 32) | Math.max(a, b), 1);
+                        }
+                    }
+                }
+            }
+            applied++;
+        }
+
+        public synchronized List<Ranked> bestsellers(int limit) {
+            return ranked(sold, limit);
+        }
+
+        public synchronized List<Ranked> mostCarted(int limit) {
+            return ranked(carted, limit);
+        }
+
+        // Titles most often in the same order as book, by number of orders together.
+        public synchronized List<Ranked> boughtWith(Book book, int limit) {
+            long id = book.getId();
+            ArrayList<Ranked> result = new ArrayList<>();
+            for (int slot : pairs.top(limit, key -> key >>> 32 == id || (key & 0xFFFFFFFFL) == id)) {
+                long key = pairs.keys[slot];
+                Book partner = inventory.getBook((int) (key >>> 32 == id ? key & 0xFFFFFFFFL : key >>> 32));
+                if (partner != null) {
+                    result.add(new Ranked(partner, pairs.counts[slot], pairs.errors[slot]));
+                }
+            }
+            return result;
+        }
+
+        // Count-Min estimate of units sold: never under, and over by at most about
+        // e/SKETCH_WIDTH of all units sold, with high probability.
+        public synchronized long estimateSold(Book book) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                estimate = Math.min(estimate, soldSketch[row][bucket(book.getId(), row)]);
+            }
+            return estimate;
+        }
+
+        public synchronized long getEvents() { return applied; }
+        public long getDropped() { return dropped.sum(); }
+
+        private List<Ranked> ranked(SpaceSaving counters, int limit) {
+            ArrayList<Ranked> result = new ArrayList<>();
+            for (int slot : counters.top(limit, key -> true)) {
+                Book book = inventory.getBook((int) counters.keys[slot]);
+                if (book != null) {
+                    result.add(new Ranked(book, counters.counts[slot], counters.errors[slot]));
+                }
+            }
+            return result;
+        }
+
+        private int bucket(int id, int row) {
+            int h = id * 0x9E3779B1 + row * 0x7FEB352D;
+            h ^= h >>> 15;
+            h *= 0x2C1B3C6D;
+            h ^= h >>> 12;
+            return h & (SKETCH_WIDTH - 1);
+        }
+    }
+
+    // --- Space-Saving ---
+    // Heavy hitters in a fixed number of counters (Metwally et al.). A key that has a counter
+    // adds to it. A new key takes over the smallest counter and inherits its count as error,
+    // so no key that occurs more than total/capacity times is ever missed. The counters form a
+    // min-heap on count, with an open-addressed key -> heap slot index beside it, so an update
+    // is a hash probe plus a sift of at most log2(capacity) steps. Not thread-safe.
+    class SpaceSaving {
+        final long[] keys;
+        final long[] counts;
+        final long[] errors;
+        private int size;
+        private final long[] indexKeys; // key + 1, so 0 marks an empty slot
+        private final int[] indexSlots;
+
+        SpaceSaving(int capacity) {
+            keys = new long[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 4 - 1);
+            indexKeys = new long[tableSize];
+            indexSlots = new int[tableSize];
+        }
+
+        void add(long key, long weight) {
+            int slot = find(key);
+            if (slot < 0) {
+                if (size < keys.length) {
+                    slot = size++;
+                    keys[slot] = key;
+                    counts[slot] = 0;
+                    errors[slot] = 0;
+                    index(key, slot);
+                    counts[slot] += weight;
+                    siftUp(slot);
+                    return;
+                }
+                slot = 0; // evict the smallest
+                unindex(keys[0]);
+                keys[0] = key;
+                errors[0] = counts[0];
+                index(key, 0);
+            }
+            counts[slot] += weight;
+            siftDown(slot);
+        }
+
+        long count(long key) {
+            int slot = find(key);
+            return slot < 0 ? 0 : counts[slot];
+        }
+
+        // Slots of the (up to) limit largest counts whose key passes accept, largest first.
+        // One pass with insertion into a short sorted run, so no boxing and no full sort.
+        int[] top(int limit, java.util.function.LongPredicate accept) {
+            int[] slots = new int[Math.max(0, Math.min(limit, size))];
+            if (slots.length == 0) {
+                return slots;
+            }
+            int found = 0;
+            for (int slot = 0; slot < size; slot++) {
+                if (found == slots.length && counts[slot] <= counts[slots[found - 1]] || !accept.test(keys[slot])) {
+                    continue;
+                }
+                int at = Math.min(found, slots.length - 1);
+                while (at > 0 && counts[slots[at - 1]] < counts[slot]) {
+                    slots[at] = slots[at - 1];
+                    at--;
+                }
+                slots[at] = slot;
+                found = Math.min(found + 1, slots.length);
+            }
+            return found == slots.length ? slots : java.util.Arrays.copyOf(slots, found);
+        }
+
+        private void siftUp(int slot) {
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (counts[parent] <= counts[slot]) {
+                    return;
+                }
+                swap(slot, parent);
+                slot = parent;
+            }
+        }
+
+        private void siftDown(int slot) {
+            while (true) {
+                int child = slot * 2 + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && counts[child + 1] < counts[child]) {
+                    child++;
+                }
+                if (counts[slot] <= counts[child]) {
+                    return;
+                }
+                swap(slot, child);
+                slot = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long key = keys[a];
+            long count = counts[a];
+            long error = errors[a];
+            keys[a] = keys[b];
+            counts[a] = counts[b];
+            errors[a] = errors[b];
+            keys[b] = key;
+            counts[b] = count;
+            errors[b] = error;
+            index(keys[a], a);
+            index(keys[b], b);
+        }
+
+        private int find(long key) {
+            int mask = indexKeys.length - 1;
+            for (int i = hash(key) & mask; indexKeys[i] != 0; i = (i + 1) & mask) {
+                if (indexKeys[i] == key + 1) {
+                    return indexSlots[i];
+                }
+            }
+            return -1;
+        }
+
+        // Adds key, or moves it to a new heap slot.
+        private void index(long key, int slot) {
+            int mask = indexKeys.length - 1;
+            int i = hash(key) & mask;
+            while (indexKeys[i] != 0 && indexKeys[i] != key + 1) {
+                i = (i + 1) & mask;
+            }
+            indexKeys[i] = key + 1;
+            indexSlots[i] = slot;
+        }
+
+        // Linear probing, so removal shifts later entries of the run back into the hole.
+        private void unindex(long key) {
+            int mask = indexKeys.length - 1;
+            int i = hash(key) & mask;
+            while (indexKeys[i] != key + 1) {
+                if (indexKeys[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            int hole = i;
+            for (int j = (i + 1) & mask; indexKeys[j] != 0; j = (j + 1) & mask) {
+                if (((j - (hash(indexKeys[j] - 1) & mask)) & mask) >= ((j - hole) & mask)) {
+                    indexKeys[hole] = indexKeys[j];
+                    indexSlots[hole] = indexSlots[j];
+                    hole = j;
+                }
+            }
+            indexKeys[hole] = 0;
+        }
+
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // --- Sales Analytics Benchmark ---
+    // Zipf-distributed orders over a synthetic catalog, folded straight into the sketches:
+    // cost per event, query latency, and how many of the true top 10 the sketch reports.
+    // Run with: java BookstoreSystem.java bench-analytics [orders]
+    class SalesAnalyticsBenchmark {
+        private static final int BOOKS = 100_000;
+
+        public void run(int orders) {
+            LocalInventory inventory = new LocalInventory();
+            inventory.addBooks(new SyntheticCatalog().books(BOOKS, 23));
+            SalesAnalytics analytics = new SalesAnalytics(inventory, 256, 4_096, 1);
+            // Zipf(1.1) by inverse CDF over a precomputed table
+            double[] cdf = new double[BOOKS];
+            double total = 0;
+            for (int rank = 0; rank < BOOKS; rank++) {
+                total += 1 / Math.pow(rank + 1, 1.1);
+                cdf[rank] = total;
+            }
+            Random random = new Random(29);
+            int[][] events = new int[orders][];
+            long[] exact = new long[BOOKS];
+            for (int i = 0; i < orders; i++) {
+                int titles = 1 + random.nextInt(4);
+                int[] event = new int[1 + titles * 2];
+                event[0] = 1;
+                for (int t = 0; t < titles; t++) {
+                    int rank = java.util.Arrays.binarySearch(cdf, random.nextDouble() * total);
+                    int id = Math.min(BOOKS - 1, rank < 0 ? -rank - 1 : rank);
+                    event[1 + t * 2] = id;
+                    event[2 + t * 2] = 1 + random.nextInt(2);
+                    exact[id] += event[2 + t * 2];
+                }
+                events[i] = event;
+            }
+
+            for (int round = 0; round < 2; round++) { // the first round warms up
+                SalesAnalytics fresh = round == 0 ? new SalesAnalytics(inventory, 256, 4_096, 1) : analytics;
+                long start = System.nanoTime();
+                synchronized (fresh) {
+                    for (int[] event : events) {
+                        fresh.apply(event);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.printf("%,d orders folded in %,d ms: %.0f ns per order%n", orders, elapsed / 1_000_000,
+                            (double) elapsed / orders);
+                }
+            }
+
+            Book top = inventory.getBook(0);
+            System.out.printf("bestsellers(10)    %8.1f us%n", time(() -> analytics.bestsellers(10)));
+            System.out.printf("boughtWith(top, 5) %8.1f us%n", time(() -> analytics.boughtWith(top, 5)));
+            System.out.printf("estimateSold       %8.1f us%n", time(() -> List.of(analytics.estimateSold(top))));
+
+            Integer[] ids = new Integer[BOOKS];
+            for (int i = 0; i < BOOKS; i++) {
+                ids[i] = i;
+            }
+            java.util.Arrays.sort(ids, (a, b) -> Long.compare(exact[b], exact[a]));
+            HashSet<Integer> trueTop = new HashSet<>();
+            for (int i = 0; i < 10; i++) {
+                trueTop.add(ids[i]);
+            }
+            int found = 0;
+            for (SalesAnalytics.Ranked ranked : analytics.bestsellers(10)) {
+                found += trueTop.contains(ranked.book.getId()) ? 1 : 0;
+            }
+            Book tenth = inventory.getBook(ids[9]);
+            System.out.printf("true top 10 found: %d/10; #10 sold %,d, Count-Min says %,d%n", found, exact[ids[9]],
+                    analytics.estimateSold(tenth));
+        }
+
+        private double time(java.util.function.Supplier<List<?>> query) {
+            for (int i = 0; i < 1_000; i++) {
+                query.get();
+            }
+            int rounds = 10_000;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                query.get();
+            }
+            return (System.nanoTime() - start) / 1_000.0 / rounds;
+        }
+    }
+
+    // --- Metrics ---
+    // Named counters and latency histograms for the hot paths, readable at any time as a
+    // snapshot (GET /api/metrics on the storefront) and optionally dumped as text on exit
+    // with -Dreadnest.metrics.dump=<file>, or =true for stderr. Counters are LongAdders and
+    // histograms have fixed size, so recording never locks and memory never grows.
+    class Metrics {
+        private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+        // Held directly by the code that records them, to skip the map lookup. Paths that run
+        // millions of times a second time a random 1 in 64 calls.
+        final LatencyHistogram reserve = histogram("inventory.reserve", 64);
+        final LongAdder reserveRejected = counter("inventory.reserve.outOfStock");
+        final LongAdder stockContended = counter("inventory.stock.contended");
+        final LongAdder stockRetries = counter("inventory.stock.casRetries");
+        final LatencyHistogram cartTotal = histogram("cart.total", 64);
+        final LatencyHistogram renderRow = histogram("gui.renderRow", 64);
+        final LatencyHistogram showCart = histogram("gui.showCart");
+        final LatencyHistogram checkoutDialog = histogram("gui.checkoutDialog");
+        final LatencyHistogram edtDispatch = histogram("gui.edt.dispatch");
+        final LongAdder edtStalls = counter("gui.edt.stalls");
+        final LatencyHistogram stockFlush = histogram("gui.stockFlush");
+        final LongAdder stockEventsCoalesced = counter("gui.stockEvents.coalesced");
+        final LatencyHistogram orderBatch = histogram("orders.commitBatch");
+        final LatencyHistogram httpRequest = histogram("http.request");
+        final LongAdder sessionSpills = counter("sessions.spilled");
+        final LongAdder sessionSpillErrors = counter("sessions.spillErrors");
+        final LongAdder sessionLinesLost = counter("sessions.reload.linesLost");
+        final LatencyHistogram sessionReload = histogram("sessions.reload");
+        final LongAdder sessionExpired = counter("sessions.expired");
+
+        public LongAdder counter(String name) {
+            return counters.computeIfAbsent(name, n -> new LongAdder());
+        }
+
+        public LatencyHistogram histogram(String name) {
+            return histogram(name, 1);
+        }
+
+        // sampleEvery must be a power of two; start()/stop() then time that fraction of calls.
+        public LatencyHistogram histogram(String name, int sampleEvery) {
+            return histograms.computeIfAbsent(name, n -> new LatencyHistogram(sampleEvery));
+        }
+
+        public Snapshot snapshot() {
+            TreeMap<String, Long> counterValues = new TreeMap<>();
+            counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+            TreeMap<String, LatencyHistogram.Summary> summaries = new TreeMap<>();
+            histograms.forEach((name, histogram) -> summaries.put(name, histogram.summary()));
+            return new Snapshot(counterValues, summaries);
+        }
+
+        // Writes the current snapshot as text to target (a file path, or "true" for stderr).
+        void dump(String target) {
+            String text = snapshot().toText();
+            if (target.isEmpty() || target.equals("true")) {
+                System.err.print(text);
+                return;
+            }
+            try {
+                Files.writeString(Paths.get(target), text);
+            } catch (IOException e) {
+                System.err.println("Could not write metrics to " + target + ": " + e);
+            }
+        }
+
+        class Snapshot {
+            public final Map<String, Long> counters;
+            public final Map<String, LatencyHistogram.Summary> histograms;
+
+            Snapshot(Map<String, Long> counters, Map<String, LatencyHistogram.Summary> histograms) {
+                this.counters = Collections.unmodifiableMap(counters);
+                this.histograms = Collections.unmodifiableMap(histograms);
+            }
+
+            public String toText() {
+                StringBuilder text = new StringBuilder(String.format("ReadNest metrics at %tc%n", System.currentTimeMillis()));
+                for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                    text.append(String.format("  %-28s %,14d%n", counter.getKey(), counter.getValue()));
+                }
+                text.append(String.format("  %-28s %10s %10s %10s %10s %10s %10s %10s%n", "latency (us)",
+                        "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+                for (Map.Entry<String, LatencyHistogram.Summary> entry : histograms.entrySet()) {
+                    LatencyHistogram.Summary h = entry.getValue();
+                    text.append(String.format("  %-28s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(),
+                            h.count, h.meanNanos / 1e3, h.p50 / 1e3, h.p90 / 1e3, h.p99 / 1e3, h.p999 / 1e3, h.max / 1e3));
+                }
+                return text.toString();
+            }
+
+            public String toJson() {
+                StringBuilder json = new StringBuilder("{\"counters\":{");
+                String separator = "";
+                for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                    json.append(separator);
+                    quote(json, counter.getKey());
+                    json.append(':').append(counter.getValue());
+                    separator = ",";
+                }
+                json.append("},\"histograms\":{");
+                separator = "";
+                for (Map.Entry<String, LatencyHistogram.Summary> entry : histograms.entrySet()) {
+                    LatencyHistogram.Summary h = entry.getValue();
+                    json.append(separator);
+                    quote(json, entry.getKey());
+                    json.append(":{\"count\":").append(h.count).append(",\"meanNanos\":").append((long) h.meanNanos)
+                            .append(",\"p50\":").append(h.p50).append(",\"p90\":").append(h.p90)
+                            .append(",\"p99\":").append(h.p99).append(",\"p999\":").append(h.p999)
+                            .append(",\"max\":").append(h.max).append('}');
+                    separator = ",";
+                }
+                return json.append("}}").toString();
+            }
+        }
+    }
+
+    // --- Latency Histogram ---
+    // Fixed-size log-linear histogram of nanosecond values in the style of HdrHistogram.
+    // Each power of two is split into 32 linear sub-buckets, so any value up to ~73 minutes is
+    // reported within ~3% in 10 KB, however many samples arrive. Recording is one atomic
+    // increment plus two adders; a sampled histogram skips even the clock reads for calls
+    // it doesn't time, and its count is the number of calls timed.
+    class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 42;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+        private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+        private final int sampleMask;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public class Summary {
+            public final long count;
+            public final double meanNanos;
+            public final long p50;
+            public final long p90;
+            public final long p99;
+            public final long p999;
+            public final long max;
+
+            Summary(long count, double meanNanos, long p50, long p90, long p99, long p999, long max) {
+                this.count = count;
+                this.meanNanos = meanNanos;
+                this.p50 = p50;
+                this.p90 = p90;
+                this.p99 = p99;
+                this.p999 = p999;
+                this.max = max;
+            }
+        }
+
+        LatencyHistogram(int sampleEvery) {
+            if (Integer.bitCount(sampleEvery) != 1) {
+                throw new IllegalArgumentException("sampleEvery must be a power of two: " + sampleEvery);
+            }
+            this.sampleMask = sampleEvery - 1;
+        }
+
+        // Begins timing a call if this one is sampled; pass the result to stop().
+        public long start() {
+            if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+                return NOT_SAMPLED;
+            }
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            if (start != NOT_SAMPLED) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            total.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        // Recorded while samples keep arriving, so it's a close view rather than an atomic one.
+        public Summary summary() {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            long highest = max.get();
+            return new Summary(count, count == 0 ? 0 : (double) sum.sum() / total.sum(),
+                    percentile(snapshot, count, 0.50, highest), percentile(snapshot, count, 0.90, highest),
+                    percentile(snapshot, count, 0.99, highest), percentile(snapshot, count, 0.999, highest), highest);
+        }
+
+        private long percentile(long[] snapshot, long count, double p, long highest) {
+            long rank = Math.max(1, (long) Math.ceil(count * p));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(highest, highestInBucket(i));
+                }
+            }
+            return highest;
+        }
+
+        private int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int shift = exponent - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private long highestInBucket(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    // --- Flight Recorder Events ---
+    // Cost nothing unless a recording enables them, e.g.
+    //   java -XX:StartFlightRecording:filename=readnest.jfr BookstoreSystem.java
+    @Name("readnest.StockContention")
+    @Label("Stock Contention")
+    @Category({"ReadNest", "Inventory"})
+    @Description("A stock update had to retry its compare-and-set because other threads changed the same title")
+    @StackTrace(false)
+    static class StockContentionEvent extends jdk.jfr.Event {
+        @Label("Book Id")
+        int bookId;
+
+        @Label("Title")
+        String title;
+
+        @Label("Retries")
+        int retries;
+    }
+
+    @Name("readnest.EdtStall")
+    @Label("EDT Stall")
+    @Category({"ReadNest", "Swing"})
+    @Description("The Swing event dispatch thread was busy with one event for longer than the threshold")
+    @Threshold("100 ms")
+    static class EdtStallEvent extends jdk.jfr.Event {
+        @Label("Event Type")
+        String eventType;
+
+        @Label("Source")
+        String source;
+    }
+
+    // --- Catalog Index ---
+    // Inverted index from lower-cased title and author tokens to book ids. Tokens are kept
+    // in a sorted map, so all tokens sharing a prefix form one contiguous range - the same
+    // walk a prefix trie does, without a node object per character.
+    class CatalogIndex {
+        // Candidates verified per query; bounds search-as-you-type latency on huge catalogs.
+        private static final int SCAN_BUDGET = 1_024;
+        // A prefix matching at most this many tokens is expanded into exact lookups.
+        private static final int MAX_EXPANSIONS = 64;
+        private static final int TITLE_EXACT = 8;
+        private static final int TITLE_PREFIX = 4;
+        private static final int AUTHOR_EXACT = 2;
+        private static final int AUTHOR_PREFIX = 1;
+
+        private final TreeMap<String, Postings> tokens = new TreeMap<>();
+        private final ArrayList<String[]> titleTokens = new ArrayList<>();
+        private final ArrayList<String[]> authorTokens = new ArrayList<>();
+        // Results are looked up by id, so the index holds no Book of its own.
+        private final java.util.function.IntFunction<Book> books;
+        private int indexed;
+
+        CatalogIndex(java.util.function.IntFunction<Book> books) {
+            this.books = books;
+        }
+
+        // Entries are (id << 1 | 1 if the token came from the author). Ids are appended in
+        // insertion order, so every list stays sorted and lists can be joined by seeking.
+        class Postings {
+            int[] entries = new int[2];
+            int count;
+            boolean inAnyTitle;
+
+            void add(int id, boolean inAuthor) {
+                int entry = id << 1 | (inAuthor ? 1 : 0);
+                inAnyTitle |= !inAuthor;
+                if (count > 0 && entries[count - 1] == entry) {
+                    return;
+                }
+                if (count == entries.length) {
+                    entries = java.util.Arrays.copyOf(entries, count * 2);
+                }
+                entries[count++] = entry;
+            }
+
+            // First position at or after from whose id is >= id, galloping then bisecting.
+            int seek(int from, int id) {
+                int key = id << 1;
+                int step = 1;
+                int hi = from;
+                while (hi < count && entries[hi] < key) {
+                    from = hi + 1;
+                    hi += step;
+                    step <<= 1;
+                }
+                hi = Math.min(hi, count);
+                while (from < hi) {
+                    int mid = (from + hi) >>> 1;
+                    if (entries[mid] < key) {
+                        from = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                return from;
+            }
+        }
+
+        public synchronized int size() {
+            return indexed;
+        }
+
+        // Indexes a page of books, skipping any already indexed. A page that starts past the
+        // end of the index is skipped too; the background indexer gets to it in order.
+        public synchronized void addAll(List<Book> page) {
+            for (Book book : page) {
+                if (book.getId() == indexed) {
+                    add(book);
+                }
+            }
+        }
+
+        private void add(Book book) {
+            int id = indexed++;
+            titleTokens.add(register(tokenize(book.getTitle()), id, false));
+            authorTokens.add(register(tokenize(book.getAuthor()), id, true));
+        }
+
+        // Swaps each token for the map's own key instance so repeated words share one String.
+        private String[] register(String[] words, int id, boolean inAuthor) {
+            for (int i = 0; i < words.length; i++) {
+                Map.Entry<String, Postings> entry = tokens.ceilingEntry(words[i]);
+                Postings postings;
+                if (entry != null && entry.getKey().equals(words[i])) {
+                    words[i] = entry.getKey();
+                    postings = entry.getValue();
+                } else {
+                    postings = new Postings();
+                    tokens.put(words[i], postings);
+                }
+                postings.add(id, inAuthor);
+            }
+            return words;
+        }
+
+        // Books are looked up once the index's lock is released, since the lookup takes the
+        // inventory's, which is held while books are added here.
+        public List<Book> search(String query, int limit) {
+            int[] ids = rank(query, limit);
+            Book[] ranked = new Book[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ranked[i] = books.apply(ids[i]);
+            }
+            return java.util.Arrays.asList(ranked);
+        }
+
+        private synchronized int[] rank(String query, int limit) {
+            String[] terms = tokenize(query);
+            if (terms.length == 0 || limit <= 0) {
+                return new int[0];
+            }
+            String prefix = terms[terms.length - 1];
+            Map<String, Postings> range = tokens.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+            Query q = new Query(terms, limit);
+
+            // Lists are scanned in order of the best score they can still produce (title hits
+            // before author hits, exact before prefix), so a full page at that score ends the scan.
+            if (terms.length > 1) {
+                int others = 0;
+                Postings[] lists = new Postings[terms.length];
+                for (int i = 0; i < terms.length - 1; i++) {
+                    lists[i] = tokens.get(terms[i]);
+                    if (lists[i] == null) {
+                        return new int[0];
+                    }
+                    others += lists[i].inAnyTitle ? TITLE_EXACT : AUTHOR_EXACT;
+                }
+                if (countUpTo(range, MAX_EXPANSIONS + 1) <= MAX_EXPANSIONS) {
+                    // Narrow prefix: join the complete words with each completion of the last one.
+                    for (Map.Entry<String, Postings> entry : range.entrySet()) {
+                        lists[terms.length - 1] = entry.getValue();
+                        boolean exact = entry.getKey().length() == prefix.length();
+                        if (q.join(lists, lists.length, others + (exact ? TITLE_EXACT : TITLE_PREFIX))) {
+                            break;
+                        }
+                    }
+                } else {
+                    q.join(lists, lists.length - 1, others + TITLE_EXACT);
+                }
+            } else {
+                Postings exact = range.get(prefix);
+                boolean done = exact != null && q.scan(exact, 0, TITLE_EXACT);
+                for (Iterator<Postings> it = range.values().iterator(); !done && it.hasNext(); ) {
+                    Postings postings = it.next();
+                    done = postings != exact && q.scan(postings, 0, TITLE_PREFIX);
+                }
+                done = done || (exact != null && q.scan(exact, 1, AUTHOR_EXACT));
+                for (Iterator<Postings> it = range.values().iterator(); !done && it.hasNext(); ) {
+                    Postings postings = it.next();
+                    done = postings != exact && q.scan(postings, 1, AUTHOR_PREFIX);
+                }
+            }
+            return q.results();
+        }
+
+        private int countUpTo(Map<String, Postings> range, int cap) {
+            int n = 0;
+            for (Iterator<String> it = range.keySet().iterator(); it.hasNext() && n < cap; it.next()) {
+                n++;
+            }
+            return n;
+        }
+
+        // Top-k state for one search call.
+        class Query {
+            private final String[] terms;
+            private final int limit;
+            private final PriorityQueue<int[]> top;
+            private final HashSet<Integer> seen = new HashSet<>();
+            private int scanned;
+
+            Query(String[] terms, int limit) {
+                this.terms = terms;
+                this.limit = limit;
+                this.top = new PriorityQueue<>(limit + 1,
+                        (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+            }
+
+            // Offers the entries of one field (0 title, 1 author); true once the query is done.
+            boolean scan(Postings postings, int field, int best) {
+                for (int i = 0; i < postings.count; i++) {
+                    int entry = postings.entries[i];
+                    if ((entry & 1) == field && offer(entry >>> 1, best)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // Leapfrog join: gallops each list forward to the largest id seen so far and
+            // offers every id present in all of them, stopping as soon as the page is settled.
+            boolean join(Postings[] lists, int n, int best) {
+                int[] pos = new int[n];
+                int id = 0;
+                while (true) {
+                    boolean agreed = true;
+                    for (int k = 0; k < n; k++) {
+                        int at = lists[k].seek(pos[k], id);
+                        if (at == lists[k].count) {
+                            return false;
+                        }
+                        pos[k] = at;
+                        int found = lists[k].entries[at] >>> 1;
+                        if (found != id) {
+                            id = found;
+                            agreed = false;
+                        }
+                    }
+                    if (agreed) {
+                        if (offer(id, best)) {
+                            return true;
+                        }
+                        id++;
+                    }
+                }
+            }
+
+            private boolean offer(int id, int best) {
+                if (scanned >= SCAN_BUDGET) {
+                    return true;
+                }
+                if (!seen.add(id)) {
+                    return false;
+                }
+                scanned++;
+                int score = score(id, terms);
+                if (score == 0) {
+                    return false;
+                }
+                if (top.size() < limit) {
+                    top.add(new int[] {score, id});
+                } else if (score > top.peek()[0]) {
+                    top.poll();
+                    top.add(new int[] {score, id});
+                }
+                // Nothing later can outrank a full page of best-possible hits.
+                return top.size() == limit && top.peek()[0] >= best;
+            }
+
+            // Ids, best first.
+            int[] results() {
+                int[] ranked = new int[top.size()];
+                for (int i = ranked.length - 1; i >= 0; i--) {
+                    ranked[i] = top.poll()[1];
+                }
+                return ranked;
+            }
+        }
+
+        // Sum of the best match of each term; 0 if any term is missing from the book.
+        private int score(int id, String[] terms) {
+            String[] title = titleTokens.get(id);
+            String[] author = authorTokens.get(id);
+            int total = 0;
+            for (int t = 0; t < terms.length; t++) {
+                boolean prefix = t == terms.length - 1;
+                int termScore = Math.max(match(title, terms[t], prefix, TITLE_EXACT, TITLE_PREFIX),
+                        match(author, terms[t], prefix, AUTHOR_EXACT, AUTHOR_PREFIX));
+                if (termScore == 0) {
+                    return 0;
+                }
+                total += termScore;
+            }
+            return total;
+        }
+
+        private int match(String[] words, String term, boolean prefix, int exactScore, int prefixScore) {
+            int result = 0;
+            for (String word : words) {
+                if (word.equals(term)) {
+                    return exactScore;
+                }
+                if (prefix && word.startsWith(term)) {
+                    result = prefixScore;
+                }
+            }
+            return result;
+        }
+
+        private String[] tokenize(String text) {
+            ArrayList<String> words = new ArrayList<>();
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (wordChar && start < 0) {
+                    start = i;
+                } else if (!wordChar && start >= 0) {
+                    words.add(text.substring(start, i).toLowerCase());
+                    start = -1;
+                }
+            }
+            return words.toArray(new String[0]);
+        }
+    }
+
+    // --- Stock and Price Index ---
+    // Sorted secondary indexes over the inventory for range and top-k browsing, so "cheapest in
+    // stock", "under ₹500" and "low stock" walk only the rows they return: O(log n + k), never a
+    // catalog scan. Prices sit in ConcurrentSkipListSets of (paise << 31) | id, one for every book
+    // and one for books in stock; a purchase touches those only when a title sells out or comes
+    // back. Stock levels are few and change on every purchase, so they're buckets instead: a
+    // sorted map from units to the ids at that level, and a purchase just moves one id between
+    // two hash sets. A level that empties is dropped from the map, so the low/most-in-stock
+    // walks never step over dead levels. The index follows the inventory as a listener. Each
+    // book is re-indexed under the lock of its id's stripe from its current stock word, and only
+    // if that word is newer than the one already indexed, so concurrent buyers of one title
+    // can't leave a stale entry behind, and titles in different stripes never wait for each other.
+    class StockPriceIndex implements InventoryListener {
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final long ID_MASK = (1L << 31) - 1;
+        private static final long MAX_PRICE_KEY = (1L << 32) - 1;
+        private static final long UNINDEXED = -1;
+        private static final int LOCK_STRIPES = 256;
+
+        private final ConcurrentSkipListSet<Long> byPrice = new ConcurrentSkipListSet<>();
+        private final ConcurrentSkipListSet<Long> inStockByPrice = new ConcurrentSkipListSet<>();
+        private final ConcurrentSkipListMap<Integer, Level> byStock = new ConcurrentSkipListMap<>();
+        private final Object[] locks = new Object[LOCK_STRIPES];
+        // The stock word each book was last indexed with, in pages that never move.
+        private volatile long[][] indexed = new long[0][];
+        private volatile Inventory inventory;
+
+        // The ids at one stock level. Readers walk ids without locking. Adding and removing
+        // hold the level's monitor, and the removal that empties it marks it dead before
+        // taking it out of the map, so an add never lands in a level that's gone.
+        private class Level {
+            final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+            boolean dead;
+        }
+
+        StockPriceIndex() {
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        // Starts following inventory and indexes the books it already has.
+        public void attach(Inventory target) {
+            inventory = target;
+            target.addListener(this);
+            List<Book> page;
+            for (int start = 0; !(page = target.getBooks(start, 4_096)).isEmpty(); start += page.size()) {
+                for (Book book : page) {
+                    refresh(book);
+                }
+            }
+        }
+
+        public void detach() {
+            inventory.removeListener(this);
+        }
+
+        @Override
+        public void bookAdded(Book book) {
+            refresh(book);
+        }
+
+        @Override
+        public void stockChanged(Book book, int delta, int stock, int version) {
+            refresh(book);
+        }
+
+        // Books priced from minPaise to maxPaise inclusive, cheapest first (or dearest first).
+        public List<Book> byPrice(long minPaise, long maxPaise, boolean inStockOnly, boolean descending, int limit) {
+            NavigableSet<Long> range = (inStockOnly ? inStockByPrice : byPrice)
+                    .subSet(key(priceKey(minPaise), 0), true, key(priceKey(maxPaise), ID_MASK), true);
+            return books(descending ? range.descendingSet() : range, limit);
+        }
+
+        // Books with minUnits to maxUnits in stock inclusive, fewest first (or most first).
+        // Books at the same level come in no particular order.
+        public List<Book> byStock(int minUnits, int maxUnits, boolean descending, int limit) {
+            NavigableMap<Integer, Level> range = byStock.subMap(minUnits, true, maxUnits, true);
+            ArrayList<Book> result = new ArrayList<>(Math.min(limit, 256));
+            for (Level level : (descending ? range.descendingMap() : range).values()) {
+                for (Iterator<Integer> it = level.ids.iterator(); it.hasNext() && result.size() < limit; ) {
+                    Book book = inventory.getBook(it.next());
+                    if (book != null) {
+                        result.add(book);
+                    }
+                }
+                if (result.size() == limit) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private List<Book> books(NavigableSet<Long> keys, int limit) {
+            ArrayList<Book> result = new ArrayList<>(Math.min(limit, 256));
+            for (Iterator<Long> it = keys.iterator(); it.hasNext() && result.size() < limit; ) {
+                Book book = inventory.getBook((int) (it.next() & ID_MASK));
+                if (book != null) {
+                    result.add(book);
+                }
+            }
+            return result;
+        }
+
+        private void refresh(Book book) {
+            int id = book.getId();
+            long[] page = page(id >>> PAGE_BITS);
+            int slot = id & (PAGE_SIZE - 1);
+            long priceKey = key(priceKey(book.getPricePaise()), id);
+            synchronized (locks[id & (LOCK_STRIPES - 1)]) {
+                long word = book.getStockWord();
+                long old = page[slot];
+                boolean wasInStock = false;
+                if (old == UNINDEXED) {
+                    byPrice.add(priceKey);
+                } else if (!newerStock(word, old)) {
+                    return; // already indexed at this version or a newer one
+                } else if ((int) old != (int) word) {
+                    leaveLevel((int) old, id);
+                    wasInStock = (int) old > 0;
+                } else {
+                    page[slot] = word;
+                    return;
+                }
+                joinLevel((int) word, id);
+                if (wasInStock != (int) word > 0) {
+                    if (wasInStock) {
+                        inStockByPrice.remove(priceKey);
+                    } else {
+                        inStockByPrice.add(priceKey);
+                    }
+                }
+                page[slot] = word;
+            }
+        }
+
+        private void joinLevel(int units, int id) {
+            while (true) {
+                Level level = byStock.computeIfAbsent(units, u -> new Level());
+                synchronized (level) {
+                    if (!level.dead) {
+                        level.ids.add(id);
+                        return;
+                    }
+                }
+                byStock.remove(units, level); // its remover may not have got there yet
+            }
+        }
+
+        private void leaveLevel(int units, int id) {
+            Level level = byStock.get(units);
+            synchronized (level) {
+                level.ids.remove(id);
+                if (!level.ids.isEmpty()) {
+                    return;
+                }
+                level.dead = true;
+            }
+            byStock.remove(units, level);
+        }
+
+        private long[] page(int number) {
+            long[][] pages = indexed;
+            if (number < pages.length) {
+                return pages[number];
+            }
+            synchronized (this) {
+                pages = indexed;
+                if (number >= pages.length) {
+                    pages = java.util.Arrays.copyOf(pages, number + 1);
+                    for (int p = indexed.length; p <= number; p++) {
+                        pages[p] = new long[PAGE_SIZE];
+                        java.util.Arrays.fill(pages[p], UNINDEXED);
+                    }
+                    indexed = pages;
+                }
+                return pages[number];
+            }
+        }
+
+        private long priceKey(long paise) {
+            return Math.max(0, Math.min(paise, MAX_PRICE_KEY));
+        }
+
+        private long key(long value, long id) {
+            return (value << 31) | id;
+        }
+    }
+
+    // --- Stock and Price Index Benchmark ---
+    // Browsing queries through the index against the full scan they replace, and what keeping
+    // the index current adds to a purchase.
+    // Run with: java BookstoreSystem.java bench-ranges [books]
+    class StockPriceIndexBenchmark {
+        private static final int LIMIT = 50;
+
+        public void run(int size) {
+            Inventory inventory = new LocalInventory();
+            inventory.addBooks(new SyntheticCatalog().books(size, 13));
+            long start = System.nanoTime();
+            StockPriceIndex index = new StockPriceIndex();
+            index.attach(inventory);
+            System.out.printf("Indexed %,d books in %d ms%n", size, (System.nanoTime() - start) / 1_000_000);
+
+            System.out.printf("%-26s %14s %14s%n", "query", "index us", "scan us");
+            compare("cheapest in stock", () -> index.byPrice(0, Long.MAX_VALUE, true, false, LIMIT),
+                    () -> scan(inventory, b -> b.getStock() > 0, Comparator.comparingLong(Book::getPricePaise)));
+            compare("under 500 rupees", () -> index.byPrice(0, 500_00, false, false, LIMIT),
+                    () -> scan(inventory, b -> b.getPricePaise() <= 500_00, Comparator.comparingLong(Book::getPricePaise)));
+            compare("low stock (<= 2)", () -> index.byStock(0, 2, false, LIMIT),
+                    () -> scan(inventory, b -> b.getStock() <= 2, Comparator.comparingInt(Book::getStock)));
+
+            Random random = new Random(1);
+            int purchases = 1_000_000;
+            for (int round = 0; round < 3; round++) { // round 0 warms up
+                boolean indexed = round < 2;
+                if (!indexed) {
+                    index.detach();
+                }
+                start = System.nanoTime();
+                for (int i = 0; i < purchases; i++) {
+                    Book book = inventory.getBook(random.nextInt(size));
+                    if (inventory.purchaseBook(book)) {
+                        inventory.release(book, 1);
+                    }
+                }
+                if (round > 0) {
+                    System.out.printf("purchase+release %-9s %14.0f ns%n", indexed ? "indexed" : "unindexed",
+                            (double) (System.nanoTime() - start) / purchases);
+                }
+            }
+        }
+
+        private List<Book> scan(Inventory inventory, java.util.function.Predicate<Book> filter, Comparator<Book> order) {
+            ArrayList<Book> matches = new ArrayList<>();
+            List<Book> page;
+            for (int start = 0; !(page = inventory.getBooks(start, 4_096)).isEmpty(); start += page.size()) {
+                for (Book book : page) {
+                    if (filter.test(book)) {
+                        matches.add(book);
+                    }
+                }
+            }
+            matches.sort(order);
+            return matches.subList(0, Math.min(LIMIT, matches.size()));
+        }
+
+        private void compare(String label, java.util.function.Supplier<List<Book>> indexed,
+                java.util.function.Supplier<List<Book>> scanned) {
+            System.out.printf("%-26s %14.1f %14.1f%n", label, time(indexed, 2_000), time(scanned, 5));
+        }
+
+        private double time(java.util.function.Supplier<List<Book>> query, int rounds) {
+            query.get();
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < rounds; i++) {
+                found += query.get().size();
+            }
+            if (found == 0) {
+                System.out.println("  (no matches)");
+            }
+            return (System.nanoTime() - start) / 1_000.0 / rounds;
+        }
+    }
+
+    // --- Synthetic Catalog ---
+    // Deterministic made-up books for benchmarks. Titles are two common words plus a unique
+    // base-36 suffix, so searches see realistic prefix overlap, and authors come from a few
+    // hundred shared names, so even 10^7 books fit in a few GB of heap.
+    class SyntheticCatalog {
+        private final String[] words = {
+            "java", "python", "history", "science", "money", "habits", "effective", "clean", "code",
+            "practice", "gene", "time", "great", "startup", "power", "happiness", "meaning", "cosmos",
+            "lord", "rings", "hobbit", "alchemist", "gatsby", "mockingbird", "prejudice", "pride",
+            "investor", "lean", "agreements", "club", "concurrency", "spring", "action", "fluent"
+        };
+        private final String[] surnames = {
+            "Gosling", "Bloch", "Martin", "Sierra", "Eckel", "Goetz", "Walls", "Lafore", "Matthes",
+            "Ramalho", "Crockford", "Coelho", "Orwell", "Lee", "Austen", "Tolkien", "Rowling", "Harari"
+        };
+        private final String[] authors = new String[surnames.length * 26];
+
+        SyntheticCatalog() {
+            for (int s = 0; s < surnames.length; s++) {
+                for (int initial = 0; initial < 26; initial++) {
+                    authors[s * 26 + initial] = surnames[s] + " " + (char) ('A' + initial) + ".";
+                }
+            }
+        }
+
+        public List<Book> books(int size, long seed) {
+            Random random = new Random(seed);
+            ArrayList<Book> books = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]
+                        + " " + Integer.toString(i, 36);
+                String author = authors[random.nextInt(surnames.length) * 26 + random.nextInt(26)];
+                books.add(new Book(title, author, 100 + random.nextInt(900), 1 + random.nextInt(10)));
+            }
+            return books;
+        }
+    }
+
+    // --- Catalog Importer ---
+    // Streams a publisher feed into the inventory. Feeds can be CSV, with an optional header
+    // naming title, author, price and stock columns, or JSON, either an array of flat objects
+    // or one object per line. The file is read through a FileChannel in CHUNK_BYTES pieces,
+    // each cut at the last complete record. Chunks are parsed on the fork-join common pool,
+    // with at most MAX_IN_FLIGHT chunks read ahead, so memory stays bounded however big the
+    // file is. Parsed chunks are loaded in file order, one inventory lock per chunk, into an
+    // inventory pre-sized from the first chunk's record density. Authors are interned across
+    // the whole import, including authors already in the catalog, so a name repeated a million
+    // times is stored once. Malformed records are skipped and counted.
+    class CatalogImporter {
+        private static final int CHUNK_BYTES = 4 << 20;
+        private static final int MAX_IN_FLIGHT = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+
+        private final Inventory inventory;
+        private final ConcurrentHashMap<String, String> authors = new ConcurrentHashMap<>();
+
+        // Called on the importing thread after each chunk is loaded.
+        interface Progress {
+            void update(long bytesRead, long totalBytes, long booksLoaded);
+        }
+
+        public class Stats {
+            public long books;
+            public long skipped;
+            public long bytes;
+            public long millis;
+            public int distinctAuthors;
+            public String firstProblem;
+            long consumed;
+        }
+
+        class Chunk {
+            final int bytes;
+            final ForkJoinTask<Parsed> task;
+
+            Chunk(int bytes, ForkJoinTask<Parsed> task) {
+                this.bytes = bytes;
+                this.task = task;
+            }
+        }
+
+        // One chunk's parse result.
+        class Parsed {
+            final ArrayList<Book> books = new ArrayList<>();
+            int skipped;
+            String firstProblem;
+
+            void skip(String problem) {
+                if (firstProblem == null) {
+                    firstProblem = problem;
+                }
+                skipped++;
+            }
+        }
+
+        CatalogImporter(Inventory inventory) {
+            this.inventory = inventory;
+        }
+
+        public Stats importFile(Path path, Progress progress) throws IOException {
+            long start = System.nanoTime();
+            internExistingAuthors();
+            Stats stats = new Stats();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long total = channel.size();
+                stats.bytes = total;
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+                boolean eof = false;
+                boolean first = true;
+                boolean json = false;
+                int[] columns = {0, 1, 2, 3};
+                ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+                while (true) {
+                    while (!eof && buffer.hasRemaining()) {
+                        eof = channel.read(buffer) < 0;
+                    }
+                    byte[] bytes = buffer.array();
+                    int length = buffer.position();
+                    if (first) {
+                        // Sniff the format and drop the BOM and CSV header before chunking.
+                        first = false;
+                        int offset = skipBom(bytes, length);
+                        json = looksLikeJson(path, bytes, offset, length);
+                        if (!json) {
+                            int headerEnd = lineEnd(bytes, offset, length);
+                            int[] named = columns(new String(bytes, offset, headerEnd - offset, StandardCharsets.UTF_8));
+                            if (named != null) {
+                                columns = named;
+                                offset = Math.min(length, headerEnd + 1);
+                            }
+                        }
+                        System.arraycopy(bytes, offset, bytes, 0, length - offset);
+                        length -= offset;
+                        stats.bytes -= offset;
+                    }
+                    if (eof && length == 0) {
+                        break;
+                    }
+                    int cut = eof ? length : (json ? lastJsonRecordEnd(bytes, 0, length) : lastCsvRecordEnd(bytes, 0, length));
+                    if (cut == 0) {
+                        // One record is bigger than the buffer; grow it rather than split the record.
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(bytes, 0, length);
+                        continue;
+                    }
+                    String text = new String(bytes, 0, cut, StandardCharsets.UTF_8);
+                    boolean parseJson = json;
+                    int[] order = columns;
+                    inFlight.add(new Chunk(cut, ForkJoinPool.commonPool().submit(
+                            () -> parseJson ? parseJson(text) : parseCsv(text, order))));
+                    // Carry the unfinished tail over to the next chunk.
+                    ByteBuffer next = buffer.capacity() > CHUNK_BYTES && length - cut <= CHUNK_BYTES / 2
+                            ? ByteBuffer.allocate(CHUNK_BYTES) : buffer;
+                    System.arraycopy(bytes, cut, next.array(), 0, length - cut);
+                    next.clear().position(length - cut);
+                    buffer = next;
+                    while (inFlight.size() >= MAX_IN_FLIGHT) {
+                        load(inFlight.poll(), stats, progress);
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    load(inFlight.poll(), stats, progress);
+                }
+            }
+            stats.distinctAuthors = authors.size();
+            stats.millis = (System.nanoTime() - start) / 1_000_000;
+            return stats;
+        }
+
+        // Adds one parsed chunk to the inventory. The first one also pre-sizes the inventory:
+        // its records per byte predict the size of the whole feed.
+        private void load(Chunk chunk, Stats stats, Progress progress) {
+            Parsed parsed = chunk.task.join();
+            if (stats.books == 0 && !parsed.books.isEmpty()) {
+                inventory.ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8,
+                        (long) ((double) stats.bytes / chunk.bytes * parsed.books.size() * 1.05)));
+            }
+            inventory.addBooks(parsed.books);
+            stats.consumed += chunk.bytes;
+            stats.books += parsed.books.size();
+            stats.skipped += parsed.skipped;
+            if (stats.firstProblem == null) {
+                stats.firstProblem = parsed.firstProblem;
+            }
+            if (progress != null) {
+                progress.update(stats.consumed, stats.bytes, stats.books);
+            }
+        }
+
+        private void internExistingAuthors() {
+            List<Book> page;
+            for (int start = 0; !(page = inventory.getBooks(start, 4_096)).isEmpty(); start += page.size()) {
+                for (Book book : page) {
+                    authors.putIfAbsent(book.getAuthor(), book.getAuthor());
+                }
+            }
+        }
+
+        private String intern(String author) {
+            String existing = authors.putIfAbsent(author, author);
+            return existing == null ? author : existing;
+        }
+
+        private Book book(Parsed parsed, String title, String author, String price, String stock, String where) {
+            if (title == null || title.isBlank() || author == null || price == null) {
+                parsed.skip(where + ": needs title, author and price");
+                return null;
+            }
+            try {
+                double value = Double.parseDouble(price.trim());
+                int units = stock == null || stock.isBlank() ? 0 : Integer.parseInt(stock.trim());
+                if (!Double.isFinite(value)) {
+                    parsed.skip(where + ": price is not a number (" + price.trim() + ")");
+                    return null;
+                }
+                if (value < 0 || units < 0) {
+                    parsed.skip(where + ": negative price or stock");
+                    return null;
+                }
+                return new Book(title.trim(), intern(author.trim()), value, units);
+            } catch (NumberFormatException e) {
+                parsed.skip(where + ": bad number (" + e.getMessage() + ")");
+                return null;
+            }
+        }
+
+        // --- CSV ---
+
+        // Maps a header line to field positions of title, author, price, stock; null if it isn't a header.
+        private int[] columns(String header) {
+            List<String> names = new ArrayList<>();
+            splitCsv(header, 0, header.length(), names);
+            int[] columns = {-1, -1, -1, -1};
+            String[] wanted = {"title", "author", "price", "stock"};
+            for (int i = 0; i < names.size(); i++) {
+                for (int w = 0; w < wanted.length; w++) {
+                    if (names.get(i).trim().equalsIgnoreCase(wanted[w])) {
+                        columns[w] = i;
+                    }
+                }
+            }
+            return columns[0] >= 0 && columns[1] >= 0 && columns[2] >= 0 ? columns : null;
+        }
+
+        private Parsed parseCsv(String text, int[] columns) {
+            Parsed parsed = new Parsed();
+            ArrayList<String> fields = new ArrayList<>(8);
+            int at = 0;
+            int record = 0;
+            while (at < text.length()) {
+                int end = splitCsv(text, at, text.length(), fields);
+                record++;
+                if (!(fields.size() == 1 && fields.get(0).isBlank())) {
+                    Book book = book(parsed, field(fields, columns[0]), field(fields, columns[1]),
+                            field(fields, columns[2]), field(fields, columns[3]), "CSV record " + record + " of chunk");
+                    if (book != null) {
+                        parsed.books.add(book);
+                    }
+                }
+                at = end;
+            }
+            return parsed;
+        }
+
+        private String field(List<String> fields, int column) {
+            return column >= 0 && column < fields.size() ? fields.get(column) : null;
+        }
+
+        // Splits one record starting at start into fields (RFC 4180 quoting); returns where the next record starts.
+        private int splitCsv(String text, int start, int end, List<String> fields) {
+            fields.clear();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int i = start;
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c == '"') {
+                        if (i + 1 < end && text.charAt(i + 1) == '"') {
+                            field.append('"');
+                            i++;
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    i++;
+                    break;
+                } else if (c != '\r') {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return i;
+        }
+
+        private int lastCsvRecordEnd(byte[] bytes, int from, int to) {
+            boolean quoted = false;
+            int cut = from;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == '"') {
+                    quoted = !quoted;
+                } else if (bytes[i] == '\n' && !quoted) {
+                    cut = i + 1;
+                }
+            }
+            return cut;
+        }
+
+        private int lineEnd(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == '\n') {
+                    return i;
+                }
+            }
+            return to;
+        }
+
+        // --- JSON ---
+
+        private boolean looksLikeJson(Path path, byte[] bytes, int from, int to) {
+            String name = path.getFileName().toString().toLowerCase();
+            if (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                return true;
+            }
+            for (int i = from; i < to; i++) {
+                if (!Character.isWhitespace(bytes[i])) {
+                    return bytes[i] == '[' || bytes[i] == '{';
+                }
+            }
+            return false;
+        }
+
+        // Just past the last '}' that closes a top-level object.
+        private int lastJsonRecordEnd(byte[] bytes, int from, int to) {
+            boolean inString = false;
+            int depth = 0;
+            int cut = from;
+            for (int i = from; i < to; i++) {
+                byte b = bytes[i];
+                if (inString) {
+                    if (b == '\\') {
+                        i++;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{') {
+                    depth++;
+                } else if (b == '}' && --depth == 0) {
+                    cut = i + 1;
+                }
+            }
+            return cut;
+        }
+
+        // Parses the flat objects in text, ignoring the array brackets and commas between them.
+        private Parsed parseJson(String text) {
+            Parsed parsed = new Parsed();
+            HashMap<String, String> fields = new HashMap<>();
+            int[] at = {0};
+            int record = 0;
+            while (true) {
+                int open = text.indexOf('{', at[0]);
+                if (open < 0) {
+                    break;
+                }
+                record++;
+                at[0] = open + 1;
+                fields.clear();
+                try {
+                    readObject(text, at, fields);
+                } catch (IllegalArgumentException e) {
+                    parsed.skip("JSON record " + record + " of chunk: " + e.getMessage());
+                    int close = text.indexOf('}', at[0]);
+                    at[0] = close < 0 ? text.length() : close + 1;
+                    continue;
+                }
+                Book book = book(parsed, fields.get("title"), fields.get("author"), fields.get("price"),
+                        fields.get("stock"), "JSON record " + record + " of chunk");
+                if (book != null) {
+                    parsed.books.add(book);
+                }
+            }
+            return parsed;
+        }
+
+        private void readObject(String text, int[] at, Map<String, String> fields) {
+            while (true) {
+                char c = next(text, at);
+                if (c == '}') {
+                    return;
+                } else if (c == ',') {
+                    continue;
+                } else if (c != '"') {
+                    throw new IllegalArgumentException("expected a field name at " + at[0]);
+                }
+                String key = readString(text, at);
+                if (next(text, at) != ':') {
+                    throw new IllegalArgumentException("expected ':' after \"" + key + "\"");
+                }
+                c = next(text, at);
+                String value;
+                if (c == '"') {
+                    value = readString(text, at);
+                } else if (c == '{' || c == '[') {
+                    throw new IllegalArgumentException("nested values are not supported (\"" + key + "\")");
+                } else {
+                    int start = at[0] - 1;
+                    while (at[0] < text.length() && ",}] \t\r\n".indexOf(text.charAt(at[0])) < 0) {
+                        at[0]++;
+                    }
+                    value = text.substring(start, at[0]);
+                    if (value.equals("null")) {
+                        value = null;
+                    }
+                }
+                fields.put(key, value);
+            }
+        }
+
+        private char next(String text, int[] at) {
+            while (at[0] < text.length() && Character.isWhitespace(text.charAt(at[0]))) {
+                at[0]++;
+            }
+            if (at[0] >= text.length()) {
+                throw new IllegalArgumentException("unexpected end of object");
+            }
+            return text.charAt(at[0]++);
+        }
+
+        private String readString(String text, int[] at) {
+            StringBuilder value = new StringBuilder();
+            while (at[0] < text.length()) {
+                char c = text.charAt(at[0]++);
+                if (c == '"') {
+                    return value.toString();
+                } else if (c != '\\') {
+                    value.append(c);
+                } else if (at[0] < text.length()) {
+                    char e = text.charAt(at[0]++);
+                    switch (e) {
+                        case 'n': value.append('\n'); break;
+                        case 't': value.append('\t'); break;
+                        case 'r': value.append('\r'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'f': value.append('\f'); break;
+                        case 'u':
+                            if (at[0] + 4 > text.length()) {
+                                throw new IllegalArgumentException("bad \\u escape");
+                            }
+                            value.append((char) Integer.parseInt(text.substring(at[0], at[0] + 4), 16));
+                            at[0] += 4;
+                            break;
+                        default: value.append(e);
+                    }
+                }
+            }
+            throw new IllegalArgumentException("unterminated string");
+        }
+
+        private int skipBom(byte[] bytes, int length) {
+            return length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF ? 3 : 0;
+        }
+    }
+
+    // --- Catalog Import Benchmark ---
+    // Writes a synthetic feed in both formats and imports each into an empty inventory.
+    // Run with: java BookstoreSystem.java bench-import [books]
+    class CatalogImportBenchmark {
+        public void run(int size) throws IOException {
+            List<Book> catalog = new SyntheticCatalog().books(size, 11);
+            for (String format : new String[] {"csv", "json"}) {
+                Path feed = Files.createTempFile("readnest-feed", "." + format);
+                try {
+                    try (java.io.BufferedWriter out = Files.newBufferedWriter(feed, StandardCharsets.UTF_8)) {
+                        out.write(format.equals("csv") ? "title,author,price,stock\n" : "[\n");
+                        for (int i = 0; i < catalog.size(); i++) {
+                            Book book = catalog.get(i);
+                            if (format.equals("csv")) {
+                                out.write("\"" + book.getTitle() + "\",\"" + book.getAuthor() + "\"," + book.getPrice() + "," + book.getStock() + "\n");
+                            } else {
+                                StringBuilder json = new StringBuilder("{\"title\":");
+                                quote(json, book.getTitle());
+                                json.append(",\"author\":");
+                                quote(json, book.getAuthor());
+                                json.append(",\"price\":").append(book.getPrice()).append(",\"stock\":").append(book.getStock())
+                                        .append(i + 1 < catalog.size() ? "},\n" : "}\n");
+                                out.write(json.toString());
+                            }
+                        }
+                        if (format.equals("json")) {
+                            out.write("]\n");
+                        }
+                    }
+                    System.gc();
+                    Inventory inventory = new LocalInventory();
+                    long[] peak = {0};
+                    Runtime runtime = Runtime.getRuntime();
+                    CatalogImporter.Stats stats = new CatalogImporter(inventory).importFile(feed, (read, total, books) ->
+                            peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory()));
+                    if (stats.books != size || inventory.getBook(size - 1).getStock() != catalog.get(size - 1).getStock()) {
+                        throw new IllegalStateException("Imported " + stats.books + " of " + size + " books: " + stats.firstProblem);
+                    }
+                    System.out.printf("%-5s %,d books, %,d MB in %,d ms: %,.0f books/s, %,.0f MB/s, %,d distinct authors, peak heap %,d MB%n",
+                            format, stats.books, stats.bytes >> 20, stats.millis, stats.books * 1000.0 / stats.millis,
+                            (stats.bytes / 1048576.0) * 1000.0 / stats.millis, stats.distinctAuthors, peak[0] >> 20);
+                } finally {
+                    Files.deleteIfExists(feed);
+                }
+            }
+        }
+    }
+
+    // --- Columnar Catalog ---
+    // Books as struct-of-arrays instead of one object each, for catalogs of many millions of
+    // titles. Every field is a primitive column: a long title reference into a UTF-8 byte heap,
+    // an int author id into a dictionary of distinct author names, price in paise as a long,
+    // and the same (version << 32) | units stock word a Book has, updated by CAS on the array
+    // element. Columns grow in fixed pages that never move, so a CAS can't race a resize, and
+    // nothing costs an object header or a reference back to BookstoreSystem. Reads go through
+    // View, a flyweight Book over one row made on demand. It decodes fields and changes stock
+    // in the columns, and moveTo() lets one view walk the whole catalog. (Off-heap MemorySegments are still incubating on JDK 17;
+    // on-heap primitive pages give the same layout without the flag.)
+    class ColumnarCatalog {
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int HEAP_PAGE_BYTES = 1 << 20;
+        private static final int MAX_TITLE_BYTES = 0xFFFF;
+
+        // Page directories are replaced, never changed in place, when add() needs a new page.
+        private volatile long[][] titleRefs = new long[0][];
+        private volatile int[][] authorIds = new int[0][];
+        private volatile long[][] prices = new long[0][];
+        private volatile long[][] stocks = new long[0][];
+        private volatile byte[][] titleHeap = new byte[0][];
+        private volatile String[] authors = new String[64];
+        private final HashMap<String, Integer> authorDictionary = new HashMap<>();
+        private int heapUsed = HEAP_PAGE_BYTES;
+        private volatile int size;
+
+        // A movable window onto one row. Its own Book fields go unused. Views of the same row
+        // are equal, so any of them can key a cart line; don't moveTo() one that's a key.
+        public class View extends Book {
+            View(int id) {
+                super(null, null, 0, 0);
+                setId(id);
+            }
+
+            public View moveTo(int id) {
+                setId(id);
+                return this;
+            }
+
+            @Override public String getTitle() { return title(getId()); }
+            @Override public String getAuthor() { return author(getId()); }
+            @Override public double getPrice() { return pricePaise(getId()) / 100.0; }
+            @Override public long getPricePaise() { return pricePaise(getId()); }
+            @Override public int getStock() { return (int) stockWord(getId()); }
+            @Override public int getStockVersion() { return (int) (stockWord(getId()) >>> 32); }
+            @Override long getStockWord() { return stockWord(getId()); }
+            @Override void restoreStock(long word) { ColumnarCatalog.this.restoreStock(getId(), word); }
+            @Override long setStockWord(int units) { return replace(getId(), units); }
+            @Override long take(int quantity) { return ColumnarCatalog.this.take(getId(), quantity); }
+            @Override long give(int quantity) { return ColumnarCatalog.this.give(getId(), quantity); }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof View && ((View) other).getId() == getId() && ((View) other).catalog() == catalog();
+            }
+
+            @Override
+            public int hashCode() {
+                return Integer.hashCode(getId());
+            }
+
+            private ColumnarCatalog catalog() {
+                return ColumnarCatalog.this;
+            }
+
+            @Override
+            public String toString() {
+                return getTitle() + " by " + getAuthor() + " - ₹" + formatRupees(getPricePaise()) + " (" + getStock() + " in stock)";
+            }
+        }
+
+        public synchronized int add(String title, String author, long pricePaise, int stock) {
+            byte[] encoded = title.getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > MAX_TITLE_BYTES) {
+                throw new IllegalArgumentException("Title longer than " + MAX_TITLE_BYTES + " bytes");
+            }
+            int id = size;
+            int page = id >>> PAGE_BITS;
+            if (page == titleRefs.length) {
+                titleRefs = java.util.Arrays.copyOf(titleRefs, page + 1);
+                titleRefs[page] = new long[PAGE_SIZE];
+                authorIds = java.util.Arrays.copyOf(authorIds, page + 1);
+                authorIds[page] = new int[PAGE_SIZE];
+                prices = java.util.Arrays.copyOf(prices, page + 1);
+                prices[page] = new long[PAGE_SIZE];
+                stocks = java.util.Arrays.copyOf(stocks, page + 1);
+                stocks[page] = new long[PAGE_SIZE];
+            }
+            int slot = id & (PAGE_SIZE - 1);
+            titleRefs[page][slot] = appendTitle(encoded);
+            Integer authorId = authorDictionary.get(author);
+            if (authorId == null) {
+                authorId = authorDictionary.size();
+                if (authorId == authors.length) {
+                    authors = java.util.Arrays.copyOf(authors, authorId * 2);
+                }
+                authors[authorId] = author;
+                authorDictionary.put(author, authorId);
+            }
+            authorIds[page][slot] = authorId;
+            prices[page][slot] = pricePaise;
+            stocks[page][slot] = stock;
+            size = id + 1; // publishes the row
+            return id;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public View view(int id) {
+            checkId(id);
+            return new View(id);
+        }
+
+        public String title(int id) {
+            long ref = titleRefs[id >>> PAGE_BITS][id & (PAGE_SIZE - 1)];
+            byte[] page = titleHeap[(int) (ref >>> 32)];
+            int at = (int) ref;
+            int length = ((page[at] & 0xFF) << 8) | (page[at + 1] & 0xFF);
+            return new String(page, at + 2, length, StandardCharsets.UTF_8);
+        }
+
+        public String author(int id) {
+            return authors[authorIds[id >>> PAGE_BITS][id & (PAGE_SIZE - 1)]];
+        }
+
+        public long pricePaise(int id) {
+            return prices[id >>> PAGE_BITS][id & (PAGE_SIZE - 1)];
+        }
+
+        public long stockWord(int id) {
+            return (long) STOCK_ELEMENT.getVolatile(stocks[id >>> PAGE_BITS], id & (PAGE_SIZE - 1));
+        }
+
+        // Book.take/give for a row: all or nothing, never below zero (or past Integer.MAX_VALUE),
+        // version bumped; they return the new stock word, or -1 if there wasn't enough stock.
+        long take(int id, int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+            }
+            checkId(id);
+            long[] page = stocks[id >>> PAGE_BITS];
+            int slot = id & (PAGE_SIZE - 1);
+            long current;
+            long next;
+            do {
+                current = (long) STOCK_ELEMENT.getVolatile(page, slot);
+                if ((int) current < quantity) {
+                    return -1;
+                }
+                next = nextStockWord(current, (int) current - quantity);
+            } while (!STOCK_ELEMENT.compareAndSet(page, slot, current, next));
+            return next;
+        }
+
+        long give(int id, int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+            }
+            checkId(id);
+            long[] page = stocks[id >>> PAGE_BITS];
+            int slot = id & (PAGE_SIZE - 1);
+            long current;
+            long next;
+            do {
+                current = (long) STOCK_ELEMENT.getVolatile(page, slot);
+                next = nextStockWord(current, addStock((int) current, quantity));
+            } while (!STOCK_ELEMENT.compareAndSet(page, slot, current, next));
+            return next;
+        }
+
+        // Sets the units outright; returns the word replaced.
+        long replace(int id, int units) {
+            if (units < 0) {
+                throw new IllegalArgumentException("Stock cannot be negative: " + units);
+            }
+            checkId(id);
+            long[] page = stocks[id >>> PAGE_BITS];
+            int slot = id & (PAGE_SIZE - 1);
+            long current;
+            do {
+                current = (long) STOCK_ELEMENT.getVolatile(page, slot);
+            } while (!STOCK_ELEMENT.compareAndSet(page, slot, current, nextStockWord(current, units)));
+            return current;
+        }
+
+        // Installs a stock word read back from disk; only used while recovering.
+        void restoreStock(int id, long word) {
+            checkId(id);
+            STOCK_ELEMENT.setVolatile(stocks[id >>> PAGE_BITS], id & (PAGE_SIZE - 1), word);
+        }
+
+        public synchronized int distinctAuthors() {
+            return authorDictionary.size();
+        }
+
+        private long appendTitle(byte[] encoded) {
+            if (heapUsed + 2 + encoded.length > HEAP_PAGE_BYTES) {
+                titleHeap = java.util.Arrays.copyOf(titleHeap, titleHeap.length + 1);
+                titleHeap[titleHeap.length - 1] = new byte[HEAP_PAGE_BYTES];
+                heapUsed = 0;
+            }
+            byte[] page = titleHeap[titleHeap.length - 1];
+            int at = heapUsed;
+            page[at] = (byte) (encoded.length >>> 8);
+            page[at + 1] = (byte) encoded.length;
+            System.arraycopy(encoded, 0, page, at + 2, encoded.length);
+            heapUsed += 2 + encoded.length;
+            return ((long) (titleHeap.length - 1) << 32) | at;
+        }
+
+        private void checkId(int id) {
+            if (id < 0 || id >= size) {
+                throw new IndexOutOfBoundsException("No book " + id);
+            }
+        }
+    }
+
+    // --- Columnar Inventory ---
+    // A LocalInventory whose titles, authors, prices and stock live in a ColumnarCatalog, with
+    // no object kept per book: getBook and getBooks hand out a new ColumnarCatalog.View each
+    // time, and stock changes are CASes on the stock column. Books handed to addBook/addBooks
+    // are copied in and can be dropped. Select it with -Dreadnest.catalog=columnar.
+    class ColumnarInventory extends LocalInventory {
+        private final ColumnarCatalog columns = new ColumnarCatalog();
+
+        @Override
+        Book store(Book book) {
+            int id = columns.add(book.getTitle(), book.getAuthor(), book.getPricePaise(), 0);
+            if (id != book.getId()) {
+                throw new IllegalStateException("Columnar row " + id + " for book " + book.getId());
+            }
+            columns.restoreStock(id, book.getStockWord());
+            return columns.view(id);
+        }
+
+        @Override
+        Book row(int id) {
+            return columns.view(id);
+        }
+
+        @Override
+        int rows() {
+            return columns.size();
+        }
+
+        @Override
+        void reserveRows(int additional) {
+            // Column pages are allocated as rows arrive
+        }
+
+        // A copy of views rather than the live list: there is no list to share.
+        @Override
+        public synchronized ArrayList<Book> getBooks() {
+            return new ArrayList<>(getBooks(0, size()));
+        }
+    }
+
+    // --- Columnar Catalog Benchmark ---
+    // Heap retained per book by Book objects (in an ArrayList, as Inventory holds them) versus
+    // the columnar store for the same synthetic catalog, plus random-access read cost.
+    // Run with: java BookstoreSystem.java bench-columnar [books]
+    class ColumnarCatalogBenchmark {
+        public void run(int size) {
+            SyntheticCatalog generator = new SyntheticCatalog();
+            long baseline = usedHeap();
+            List<Book> books = generator.books(size, 5);
+            long objectBytes = usedHeap() - baseline;
+            long checksum = readAll(books.size(), id -> books.get(id));
+
+            ColumnarCatalog columnar = new ColumnarCatalog();
+            for (Book book : books) {
+                columnar.add(book.getTitle(), book.getAuthor(), book.getPricePaise(), book.getStock());
+            }
+            List<Book> reference = books;
+            for (int i = 0; i < size; i += Math.max(1, size / 1_000)) {
+                ColumnarCatalog.View view = columnar.view(i);
+                Book book = reference.get(i);
+                if (!view.getTitle().equals(book.getTitle()) || !view.getAuthor().equals(book.getAuthor())
+                        || view.getPricePaise() != book.getPricePaise() || view.getStock() != book.getStock()) {
+                    throw new IllegalStateException("Columnar row " + i + " differs from its book");
+                }
+            }
+            reference = null;
+            books.clear();
+            ((ArrayList<Book>) books).trimToSize();
+            long columnarBytes = usedHeap() - baseline;
+            ColumnarCatalog.View cursor = columnar.view(0);
+            long columnarChecksum = readAll(size, cursor::moveTo);
+            if (checksum != columnarChecksum) {
+                throw new IllegalStateException("Checksums differ");
+            }
+
+            System.out.printf("%,d books, %,d distinct authors%n", size, columnar.distinctAuthors());
+            System.out.printf("%-10s %14s %12s%n", "store", "heap MB", "bytes/book");
+            System.out.printf("%-10s %14.1f %12.1f%n", "objects", objectBytes / 1048576.0, (double) objectBytes / size);
+            System.out.printf("%-10s %14.1f %12.1f%n", "columnar", columnarBytes / 1048576.0, (double) columnarBytes / size);
+
+            // The same catalog as a whole Inventory, search index and all
+            columnar = null;
+            cursor = null;
+            for (boolean inColumns : new boolean[] {false, true}) {
+                long before = usedHeap();
+                LocalInventory inventory = inColumns ? new ColumnarInventory() : new LocalInventory();
+                inventory.addBooks(generator.books(size, 5));
+                long bytes = usedHeap() - before;
+                readAll(size, inventory::getBook);
+                System.out.printf("%-20s %14.1f %12.1f%n", inventory.getClass().getSimpleName(), bytes / 1048576.0,
+                        (double) bytes / size);
+                inventory = null;
+            }
+        }
+
+        // Reads every field of random rows; returns a checksum and prints the cost per row.
+        private long readAll(int size, java.util.function.IntFunction<CatalogEntry> rows) {
+            Random random = new Random(9);
+            long checksum = 0;
+            int reads = Math.min(size, 2_000_000);
+            long start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                CatalogEntry entry = rows.apply(random.nextInt(size));
+                checksum += entry.getTitle().length() + entry.getAuthor().length() + entry.getPricePaise() + entry.getStock();
+            }
+            System.out.printf("  random reads via %s: %.0f ns/row%n", rows.apply(0).getClass().getSimpleName(),
+                    (double) (System.nanoTime() - start) / reads);
+            return checksum;
+        }
+
+        private long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    // --- Catalog Search Benchmark ---
+    // Times search-as-you-type queries against a synthetic catalog.
+    // Run with: java BookstoreSystem.java bench-search [books]
+    class CatalogSearchBenchmark {
+        public void run(int size) {
+            List<Book> catalog = new SyntheticCatalog().books(size, 42);
+            Inventory inventory = new LocalInventory();
+            long loadStart = System.nanoTime();
+            for (Book book : catalog) {
+                inventory.addBook(book);
+            }
+            System.out.printf("Indexed %,d books in %d ms%n", size, (System.nanoTime() - loadStart) / 1_000_000);
+
+            String[] queries = {"j", "ja", "jav", "java", "java c", "java co", "java concurrency", "tolk",
+                    "tolkien hob", "sci", "x", "great gats", "rowling ha", "zz"};
+            for (int warmup = 0; warmup < 2_000; warmup++) {
+                inventory.search(queries[warmup % queries.length], 50);
+            }
+            System.out.printf("%-20s %10s %12s%n", "query", "results", "mean us");
+            for (String query : queries) {
+                int rounds = 500;
+                int results = 0;
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    results = inventory.search(query, 50).size();
+                }
+                double micros = (System.nanoTime() - start) / 1_000.0 / rounds;
+                System.out.printf("%-20s %10d %12.1f%n", "\"" + query + "\"", results, micros);
+            }
+        }
+    }
+
+    // --- Stock Contention Benchmark ---
+    // Compares per-book CAS reservations against the old Inventory-wide monitor.
+    // Run with: java BookstoreSystem.java bench-stock
+    class StockContentionBenchmark {
+        private static final int TITLES = 10_000;
+        private static final long WARMUP_MILLIS = 300;
+        private static final long MEASURE_MILLIS = 1_000;
+        private static final int INITIAL_STOCK = Integer.MAX_VALUE;
+        private final int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+
+        // The pre-CAS purchase path, kept only as the baseline to measure against: a plain
+        // stock field per title, read and written under one Inventory-wide monitor.
+        class MonitorInventory {
+            private final int[] stock = new int[TITLES];
+
+            MonitorInventory() {
+                java.util.Arrays.fill(stock, INITIAL_STOCK);
+            }
+
+            public synchronized boolean purchaseBook(Book book) {
+                if (stock[book.getId()] > 0) {
+                    stock[book.getId()]--;
+                    return true;
+                }
+                return false;
+            }
+
+            public synchronized int stock(Book book) {
+                return stock[book.getId()];
+            }
+        }
+
+        interface Purchase {
+            boolean purchase(Book book);
+        }
+
+        public void run() throws InterruptedException {
+            System.out.printf("%-8s %8s %16s %16s %8s%n",
+                    "titles", "threads", "monitor ops/s", "cas ops/s", "speedup");
+            for (boolean hot : new boolean[] {true, false}) {
+                for (int threads : threadCounts) {
+                    MonitorInventory baseline = new MonitorInventory();
+                    double monitor = measure(threads, hot, baseline::purchaseBook, baseline::stock);
+                    Inventory inventory = new LocalInventory();
+                    double cas = measure(threads, hot, inventory::purchaseBook, Book::getStock);
+                    System.out.printf("%-8s %8d %16.0f %16.0f %7.2fx%n",
+                            hot ? "hot" : "uniform", threads, monitor, cas, cas / monitor);
+                }
+            }
+        }
+
+        private double measure(int threads, boolean hot, Purchase purchase, ToIntFunction<Book> stock)
+                throws InterruptedException {
+            Book[] books = new Book[TITLES];
+            for (int i = 0; i < TITLES; i++) {
+                books[i] = new Book("Title " + i, "Author " + i, 100.0, INITIAL_STOCK);
+                books[i].setId(i);
+            }
+
+            AtomicBoolean measuring = new AtomicBoolean(false);
+            AtomicBoolean stop = new AtomicBoolean(false);
+            long[] purchased = new long[threads];
+            long[] measured = new long[threads];
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int slot = t;
+                workers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ok = 0;
+                    long ops = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (!stop.get()) {
+                        Book book = hot ? books[0] : books[random.nextInt(TITLES)];
+                        if (purchase.purchase(book)) {
+                            ok++;
+                        }
+                        if (measuring.get()) {
+                            ops++;
+                        }
+                    }
+                    purchased[slot] = ok;
+                    measured[slot] = ops;
+                });
+                workers[t].start();
+            }
+
+            start.countDown();
+            Thread.sleep(WARMUP_MILLIS);
+            measuring.set(true);
+            long begin = System.nanoTime();
+            Thread.sleep(MEASURE_MILLIS);
+            measuring.set(false);
+            long elapsed = System.nanoTime() - begin;
+            stop.set(true);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            // Oversell check: every successful purchase must be accounted for in stock.
+            long sold = 0;
+            long remaining = 0;
+            for (int t = 0; t < threads; t++) {
+                sold += purchased[t];
+            }
+            for (Book book : books) {
+                int units = stock.applyAsInt(book);
+                remaining += units;
+                if (units < 0) {
+                    throw new IllegalStateException("Oversold " + book.getTitle() + ": " + units);
+                }
+            }
+            if (remaining + sold != (long) INITIAL_STOCK * TITLES) {
+                throw new IllegalStateException("Stock mismatch: sold " + sold + ", remaining " + remaining);
+            }
+
+            long ops = 0;
+            for (long count : measured) {
+                ops += count;
+            }
+            return ops * 1_000_000_000.0 / elapsed;
+        }
+    }
+
+    // --- Paged List Model ---
+    // Where a PagedListModel reads its rows from.
+    interface PageSource<E> {
+        int size();
+        List<E> loadPage(int start, int count);
+    }
+
+    // ListModel that reads rows through to a PageSource on demand instead of copying the whole
+    // backing store up front. Only a handful of pages (the visible rows plus a prefetch window)
+    // are held at once, in a direct-mapped cache, and changes are reported as exact intervals.
+    class PagedListModel<E> extends AbstractListModel<E> {
+        private static final long serialVersionUID = 1L;
+        private static final int PAGE_SIZE = 128;
+        private static final int CACHED_PAGES = 8;
+        // Reading this close to the end of a page loads the next one ahead of the scroll.
+        private static final int PREFETCH_ROWS = 32;
+
+        private final PageSource<E> source;
+        private final int[] slotPage = new int[CACHED_PAGES];
+        private final Object[] slotRows = new Object[CACHED_PAGES];
+        private int size;
+
+        PagedListModel(PageSource<E> source) {
+            this.source = source;
+            this.size = source.size();
+            java.util.Arrays.fill(slotPage, -1);
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public E getElementAt(int index) {
+            int page = index / PAGE_SIZE;
+            int offset = index % PAGE_SIZE;
+            List<E> rows = page(page);
+            if (offset >= PAGE_SIZE - PREFETCH_ROWS && (page + 1) * PAGE_SIZE < size) {
+                page(page + 1);
+            }
+            return offset < rows.size() ? rows.get(offset) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<E> page(int page) {
+            int slot = page % CACHED_PAGES;
+            if (slotPage[slot] != page) {
+                slotRows[slot] = source.loadPage(page * PAGE_SIZE, PAGE_SIZE);
+                slotPage[slot] = page;
+            }
+            return (List<E>) slotRows[slot];
+        }
+
+        // Row contents changed in place (e.g. stock); repaints just that row.
+        public void rowChanged(int index) {
+            rowsChanged(index, index);
+        }
+
+        public void rowsChanged(int first, int last) {
+            if (first >= 0 && last < size && first <= last) {
+                fireContentsChanged(this, first, last);
+            }
+        }
+
+        // Picks up rows appended to or removed from the end of the source.
+        public void refreshSize() {
+            int newSize = source.size();
+            int oldSize = size;
+            if (newSize == oldSize) {
+                return;
+            }
+            evict(Math.min(oldSize, newSize) / PAGE_SIZE);
+            size = newSize;
+            if (newSize > oldSize) {
+                fireIntervalAdded(this, oldSize, newSize - 1);
+            } else {
+                fireIntervalRemoved(this, newSize, oldSize - 1);
+            }
+        }
+
+        // Re-reads everything, for sources whose rows can move (e.g. a cart line removed).
+        public void reload() {
+            int oldSize = size;
+            evict(0);
+            size = source.size();
+            if (size < oldSize) {
+                fireIntervalRemoved(this, size, oldSize - 1);
+            } else if (size > oldSize) {
+                fireIntervalAdded(this, oldSize, size - 1);
+            }
+            if (size > 0 && oldSize > 0) {
+                fireContentsChanged(this, 0, Math.min(size, oldSize) - 1);
+            }
+        }
+
+        // Drops every cached page from firstPage on, so it is re-read on next access.
+        private void evict(int firstPage) {
+            for (int slot = 0; slot < CACHED_PAGES; slot++) {
+                if (slotPage[slot] >= firstPage) {
+                    slotPage[slot] = -1;
+                    slotRows[slot] = null;
+                }
+            }
+        }
+    }
+
+    // --- Inventory Event Bus ---
+    // Gets every stock change to the screen without flooding the EDT. Changes come from buyer
+    // threads, this session or any other, by way of the listener. Each one just sets the book's
+    // bit in a dirty bitmap, and only the first change to a clean book queues its id. So a title
+    // selling a thousand copies between frames costs one queue entry. At most once per frame a
+    // Swing timer drains the queue on the EDT and hands subscribers the sorted ids that
+    // changed, and they repaint only the rows that need it.
+    class InventoryEventBus implements InventoryListener {
+        private static final int FRAME_MILLIS = 16;
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+        private final CopyOnWriteArrayList<StockSubscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean grew;
+        private volatile AtomicLongArray[] dirty = new AtomicLongArray[0];
+        private final Timer frame = new Timer(FRAME_MILLIS, e -> flush());
+        private int[] batch = new int[256];
+
+        InventoryEventBus() {
+            frame.setRepeats(false);
+        }
+
+        public void subscribe(StockSubscriber subscriber) {
+            subscribers.add(subscriber);
+        }
+
+        public void unsubscribe(StockSubscriber subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        @Override
+        public void bookAdded(Book book) {
+            grew = true;
+            schedule();
+        }
+
+        @Override
+        public void stockChanged(Book book, int delta, int stock, int version) {
+            int id = book.getId();
+            long bit = 1L << id;
+            if ((page(id >>> PAGE_BITS).getAndAccumulate((id & (PAGE_SIZE - 1)) >>> 6, bit, (a, b) -> a | b) & bit) != 0) {
+                metrics.stockEventsCoalesced.increment();
+                return; // already queued for the next frame
+            }
+            pending.add(id);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(frame::restart);
+            }
+        }
+
+        // Runs on the EDT. Clears each bit before subscribers read the book, so a change made
+        // while they paint queues it again for the next frame instead of being lost.
+        private void flush() {
+            long start = System.nanoTime();
+            scheduled.set(false);
+            int count = 0;
+            for (Integer id; (id = pending.poll()) != null; ) {
+                page(id >>> PAGE_BITS).getAndAccumulate((id & (PAGE_SIZE - 1)) >>> 6, ~(1L << id), (a, b) -> a & b);
+                if (count == batch.length) {
+                    batch = java.util.Arrays.copyOf(batch, count * 2);
+                }
+                batch[count++] = id;
+            }
+            java.util.Arrays.sort(batch, 0, count);
+            boolean catalogGrew = grew;
+            grew = false;
+            for (StockSubscriber subscriber : subscribers) {
+                subscriber.stockChanged(batch, count, catalogGrew);
+            }
+            metrics.stockFlush.record(System.nanoTime() - start);
+        }
+
+        private AtomicLongArray page(int number) {
+            AtomicLongArray[] pages = dirty;
+            if (number < pages.length) {
+                return pages[number];
+            }
+            synchronized (this) {
+                pages = dirty;
+                if (number >= pages.length) {
+                    pages = java.util.Arrays.copyOf(pages, number + 1);
+                    for (int p = dirty.length; p <= number; p++) {
+                        pages[p] = new AtomicLongArray(PAGE_SIZE / 64);
+                    }
+                    dirty = pages;
+                }
+                return pages[number];
+            }
+        }
+    }
+
+    // --- Stock Subscriber ---
+    // Told on the EDT, about once per frame, which books changed since the last call:
+    // ids[0..count) in ascending order, each at most once. catalogGrew is set when books
+    // were added. The array is reused, so don't keep it.
+    interface StockSubscriber {
+        void stockChanged(int[] ids, int count, boolean catalogGrew);
+    }
+
+    // --- Book Cell Renderer ---
+    // Paints title, author, price and stock directly instead of going through Swing's HTML
+    // view. Colors, fonts and padding are shared; each book's text is laid out once into glyph
+    // vectors and only its stock line is rebuilt, and only when that book's stock changes.
+    // Cart lines (one per title) are drawn the same way with quantity and subtotal instead.
+    class BookCellRenderer extends JComponent implements ListCellRenderer<Object> {
+        private static final long serialVersionUID = 1L;
+        private static final Color SELECTED_BACKGROUND = new Color(70, 130, 180);
+        private static final Color ALTERNATE_BACKGROUND = new Color(240, 248, 255);
+        private static final int PADDING = 5;
+        private static final int CACHED_LAYOUTS = 1_024;
+
+        private final RenderingHints.Key[] hintKeys;
+        private final Object[] hintValues;
+        // Least recently painted layouts are dropped, so memory follows the visible rows.
+        private final LinkedHashMap<Book, RowLayout> layouts = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Book, RowLayout> eldest) {
+                return size() > CACHED_LAYOUTS;
+            }
+        };
+        private Font baseFont;
+        private Font titleFont;
+        private FontRenderContext frc;
+        private int lineHeight;
+        private int titleAscent;
+        private int bodyAscent;
+
+        private RowLayout row;
+        private Color foreground;
+        private Color background;
+
+        // Pre-shaped text of one book.
+        class RowLayout {
+            final GlyphVector title;
+            final GlyphVector byAuthor;
+            final float titleWidth;
+            final float width;
+            final Book book;
+            GlyphVector details;
+            float detailsWidth;
+            // Stock for a catalog row, quantity for a cart line; the details line shows it.
+            int count;
+            boolean cartLine;
+
+            RowLayout(Book book, boolean cartLine, int count) {
+                this.book = book;
+                title = titleFont.createGlyphVector(frc, book.getTitle());
+                byAuthor = baseFont.createGlyphVector(frc, " by " + book.getAuthor());
+                titleWidth = (float) title.getLogicalBounds().getWidth();
+                width = titleWidth + (float) byAuthor.getLogicalBounds().getWidth();
+                layoutDetails(cartLine, count);
+            }
+
+            void layoutDetails(boolean cartLine, int count) {
+                this.cartLine = cartLine;
+                this.count = count;
+                String text = cartLine
+                        ? "Qty: " + count + " × ₹" + formatRupees(book.getPricePaise())
+                                + " | Subtotal: ₹" + formatRupees(book.getPricePaise() * count)
+                        : "Price: ₹" + book.getPrice() + " | Stock: " + count;
+                details = baseFont.createGlyphVector(frc, text);
+                detailsWidth = (float) details.getLogicalBounds().getWidth();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        BookCellRenderer() {
+            setOpaque(true);
+            // Desktop text anti-aliasing settings, unpacked once so painting doesn't iterate a map.
+            Map<RenderingHints.Key, Object> hints = (Map<RenderingHints.Key, Object>)
+                    Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            hintKeys = hints == null ? new RenderingHints.Key[0] : hints.keySet().toArray(new RenderingHints.Key[0]);
+            hintValues = new Object[hintKeys.length];
+            for (int i = 0; i < hintKeys.length; i++) {
+                hintValues[i] = hints.get(hintKeys[i]);
+            }
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            updateFonts(list);
+            boolean cartLine = value instanceof CartLine;
+            Book book = cartLine ? ((CartLine) value).getBook() : (Book) value;
+            int count = cartLine ? ((CartLine) value).getQuantity() : book.getStock();
+            row = layouts.get(book);
+            if (row == null) {
+                row = new RowLayout(book, cartLine, count);
+                layouts.put(book, row);
+            } else if (row.count != count || row.cartLine != cartLine) {
+                row.layoutDetails(cartLine, count);
+            }
+            if (book.getStock() == 0) {
+                foreground = Color.GRAY;
+            } else {
+                foreground = isSelected ? Color.WHITE : Color.BLACK;
+            }
+            if (isSelected) {
+                background = SELECTED_BACKGROUND;
+            } else {
+                background = index % 2 == 0 ? Color.WHITE : ALTERNATE_BACKGROUND;
+            }
+            return this;
+        }
+
+        // Fonts and metrics are derived once per list font, not once per cell.
+        private void updateFonts(JList<?> list) {
+            Font font = list.getFont();
+            if (font == baseFont) {
+                return;
+            }
+            baseFont = font;
+            titleFont = font.deriveFont(Font.BOLD);
+            FontMetrics bodyMetrics = list.getFontMetrics(baseFont);
+            FontMetrics titleMetrics = list.getFontMetrics(titleFont);
+            frc = bodyMetrics.getFontRenderContext();
+            titleAscent = titleMetrics.getAscent();
+            bodyAscent = bodyMetrics.getAscent();
+            lineHeight = Math.max(titleMetrics.getHeight(), bodyMetrics.getHeight());
+            layouts.clear();
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            int width = row == null ? 0 : (int) Math.ceil(Math.max(row.width, row.detailsWidth));
+            return new Dimension(width + 2 * PADDING, 2 * lineHeight + 2 * PADDING);
+        }
+
+        // Paints straight into the graphics the list hands over; JComponent.paint would first
+        // make another copy of it per cell just to manage borders and children we don't have.
+        @Override
+        public void paint(Graphics g) {
+            long start = metrics.renderRow.start();
+            paintComponent(g);
+            metrics.renderRow.stop(start);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(background);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (row == null) {
+                return;
+            }
+            Graphics2D g2 = (Graphics2D) g;
+            for (int i = 0; i < hintKeys.length; i++) {
+                g2.setRenderingHint(hintKeys[i], hintValues[i]);
+            }
+            g2.setColor(foreground);
+            g2.drawGlyphVector(row.title, PADDING, PADDING + titleAscent);
+            g2.drawGlyphVector(row.byAuthor, PADDING + row.titleWidth, PADDING + titleAscent);
+            g2.drawGlyphVector(row.details, PADDING, PADDING + lineHeight + bodyAscent);
+        }
+
+        // Like DefaultListCellRenderer: a rubber stamp never needs layout or repaint bookkeeping.
+        @Override public void invalidate() {}
+        @Override public void validate() {}
+        @Override public void revalidate() {}
+        @Override public void repaint(long tm, int x, int y, int width, int height) {}
+        @Override public void repaint(Rectangle r) {}
+        @Override public void repaint() {}
+        @Override protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {}
+    }
+
+    // --- Renderer Paint Benchmark ---
+    // Paints list rows into an offscreen image the way BasicListUI does and reports rows per
+    // second and bytes allocated per row, for the old HTML renderer and BookCellRenderer.
+    // Run with: java BookstoreSystem.java bench-render [rows]
+    class RendererPaintBenchmark {
+        private static final int WIDTH = 560;
+        private static final int ROUNDS = 5;
+
+        // The pre-BookCellRenderer HTML renderer, kept only as the baseline to measure against.
+        class HtmlBookCellRenderer extends DefaultListCellRenderer {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                if (value instanceof Book) {
+                    Book book = (Book) value;
+                    setText("<html><b>" + book.getTitle() + "</b> by " + book.getAuthor() +
+                            "<br>Price: ₹" + book.getPrice() + " | Stock: " + book.getStock() + "</html>");
+                    if (book.getStock() == 0) {
+                        setForeground(Color.GRAY);
+                    } else {
+                        setForeground(isSelected ? Color.WHITE : Color.BLACK);
+                    }
+                }
+                if (isSelected) {
+                    setBackground(new Color(70, 130, 180));
+                } else {
+                    setBackground(index % 2 == 0 ? Color.WHITE : new Color(240, 248, 255));
+                }
+                setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+                return this;
+            }
+        }
+
+        public void run(int rows) {
+            Book[] books = new Book[Math.min(rows, 200)];
+            for (int i = 0; i < books.length; i++) {
+                books[i] = new Book("Book Title Number " + i, "Author " + (i % 37), 199.0 + i, i % 9);
+            }
+            JList<Book> list = new JList<>(books);
+            list.setSize(WIDTH, 10_000);
+
+            System.out.printf("%-10s %14s %16s%n", "renderer", "rows/s", "bytes/row");
+            measure("html", list, new HtmlBookCellRenderer(), books, rows);
+            measure("painted", list, new BookCellRenderer(), books, rows);
+        }
+
+        private void measure(String name, JList<Book> list, ListCellRenderer<Object> renderer,
+                Book[] books, int rows) {
+            CellRendererPane pane = new CellRendererPane();
+            list.add(pane);
+            Component prototype = renderer.getListCellRendererComponent(list, books[0], 0, false, false);
+            int height = prototype.getPreferredSize().height;
+            BufferedImage image = new BufferedImage(WIDTH, height, BufferedImage.TYPE_INT_RGB);
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+
+            double bestRate = 0;
+            double bestBytes = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                // Every few hundred rows a book sells a copy, to include stock-line invalidation.
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                Graphics2D g = image.createGraphics();
+                for (int i = 0; i < rows; i++) {
+                    Book book = books[i % books.length];
+                    if (i % 500 == 0) {
+                        book.setStockWord(book.getStock() == 0 ? 9 : book.getStock() - 1);
+                    }
+                    Component c = renderer.getListCellRendererComponent(list, book, i, i % 50 == 0, false);
+                    pane.paintComponent(g, c, list, 0, 0, WIDTH, height, true);
+                }
+                g.dispose();
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                bestRate = Math.max(bestRate, rows * 1_000_000_000.0 / elapsed);
+                bestBytes = Math.min(bestBytes, (double) allocated / rows);
+            }
+            list.remove(pane);
+            System.out.printf("%-10s %14.0f %16.1f%n", name, bestRate, bestBytes);
+        }
+    }
+
+    // --- Benchmark Suite ---
+    // A small JMH-style harness over the domain model. It lives in this file because the
+    // project has no build to hang a JMH module on. Every case runs against synthetic catalogs
+    // of each requested size. A case gets warmup iterations and then timed measurement
+    // iterations, and its results feed a sink so the JIT can't discard the work. Scores carry
+    // a 99.9% confidence interval, as JMH reports them. Results print as a table and can also
+    // be written as JSON in JMH's result format (-rf json), so existing JMH tooling can compare
+    // runs release over release. Catalogs of 10^7 books need about -Xmx6g.
+    // Run with: java BookstoreSystem.java bench [--sizes 1000,10000,100000,1000000] [--only name] [--json file]
+    class BenchmarkSuite {
+        private static final int WARMUP_ITERATIONS = 3;
+        private static final int MEASURE_ITERATIONS = 5;
+        private static final long ITERATION_MILLIS = 500;
+        // Loading a catalog of a million books or more takes longer than an iteration anyway.
+        private static final int LARGE_CATALOG = 1_000_000;
+        private static final int LARGE_WARMUP_ITERATIONS = 1;
+        private static final int LARGE_MEASURE_ITERATIONS = 3;
+        private static final int CONTENDED_THREADS = 4;
+        private static final int HOT_TITLES = 16;
+        private static final int MAX_CART_LINES = 100_000;
+        private static final int RENDER_WIDTH = 560;
+        // Two-sided 99.9% Student t quantiles by degrees of freedom (1..10), as JMH uses.
+        private final double[] studentT = {Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+
+        private final ArrayList<Result> results = new ArrayList<>();
+        private String only;
+        private volatile long sink;
+
+        // Runs until deadline (a System.nanoTime() value) and returns the operations completed.
+        interface Iteration {
+            long run(long deadline) throws Exception;
+        }
+
+        class Result {
+            final String name;
+            final String mode;
+            final String unit;
+            final int threads;
+            final int warmups;
+            final Map<String, String> params;
+            final double[] scores;
+            final double score;
+            final double error;
+
+            Result(String name, String mode, String unit, int threads, int warmups, Map<String, String> params, double[] scores) {
+                this.name = name;
+                this.mode = mode;
+                this.unit = unit;
+                this.threads = threads;
+                this.warmups = warmups;
+                this.params = params;
+                this.scores = scores;
+                double sum = 0;
+                for (double s : scores) {
+                    sum += s;
+                }
+                score = sum / scores.length;
+                double squares = 0;
+                for (double s : scores) {
+                    squares += (s - score) * (s - score);
+                }
+                int df = scores.length - 1;
+                error = df == 0 ? Double.NaN
+                        : (df < studentT.length ? studentT[df] : 3.291) * Math.sqrt(squares / df) / Math.sqrt(scores.length);
+            }
+        }
+
+        public void run(String[] args) throws Exception {
+            int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+            String json = null;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--sizes") && i + 1 < args.length) {
+                    String[] parts = args[++i].split(",");
+                    sizes = new int[parts.length];
+                    for (int p = 0; p < parts.length; p++) {
+                        sizes[p] = Integer.parseInt(parts[p].trim());
+                    }
+                } else if (args[i].equals("--only") && i + 1 < args.length) {
+                    only = args[++i];
+                } else if (args[i].equals("--json") && i + 1 < args.length) {
+                    json = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+
+            System.out.printf("%-14s %10s %6s %16s %12s  %s%n", "benchmark", "books", "mode", "score", "error", "units");
+            for (int size : sizes) {
+                List<Book> catalog = new SyntheticCatalog().books(size, 42);
+                Inventory inventory = new LocalInventory();
+                inventory.addBooks(catalog);
+                Map<String, String> params = Map.of("books", Integer.toString(size));
+
+                if (selected("addBook")) {
+                    addBook(catalog, params);
+                }
+                if (selected("purchaseBook")) {
+                    purchaseBook(inventory, params);
+                }
+                int cartLines = Math.min(size, MAX_CART_LINES);
+                if (selected("cartAdd")) {
+                    cartAdd(catalog, params, cartLines);
+                }
+                if (selected("cartGetTotal")) {
+                    cartGetTotal(catalog, params, cartLines);
+                }
+                if (selected("titleLookup")) {
+                    titleLookup(inventory, catalog, params);
+                }
+                if (selected("renderRow")) {
+                    renderRow(catalog, params);
+                }
+            }
+            if (json != null) {
+                Files.writeString(Paths.get(json), toJson());
+                System.out.println("Wrote " + json);
+            }
+        }
+
+        private boolean selected(String name) {
+            return only == null || only.equals(name);
+        }
+
+        // Bulk load of the whole catalog into fresh inventories, indexing included; the score is
+        // per book. Re-adding the same Book objects in the same order gives them the same ids.
+        private void addBook(List<Book> catalog, Map<String, String> params) throws Exception {
+            measure("addBook", "avgt", "ns/op", 1, 1, params, deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    Inventory inventory = new LocalInventory();
+                    for (Book book : catalog) {
+                        inventory.addBook(book);
+                    }
+                    ops += catalog.size();
+                    sink = inventory.size();
+                }
+                return ops;
+            });
+        }
+
+        // A few hot titles bought from several threads at once, like a launch-day bestseller.
+        private void purchaseBook(Inventory inventory, Map<String, String> params) throws Exception {
+            Book[] hot = new Book[Math.min(HOT_TITLES, inventory.size())];
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = inventory.getBook(i * (inventory.size() / hot.length));
+                inventory.setStock(hot[i], Integer.MAX_VALUE);
+            }
+            measure("purchaseBook", "thrpt", "ops/ms", 1e6, CONTENDED_THREADS, params, deadline -> {
+                AtomicLong purchases = new AtomicLong();
+                Thread[] workers = new Thread[CONTENDED_THREADS];
+                for (int t = 0; t < workers.length; t++) {
+                    workers[t] = new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long n = 0;
+                        while ((n & 255) != 0 || System.nanoTime() < deadline) {
+                            inventory.purchaseBook(hot[random.nextInt(hot.length)]);
+                            n++;
+                        }
+                        purchases.addAndGet(n);
+                    });
+                    workers[t].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                return purchases.get();
+            });
+            for (Book book : hot) {
+                inventory.setStock(book, 5);
+            }
+        }
+
+        // Fills fresh carts with up to MAX_CART_LINES distinct titles; the score is per add.
+        private void cartAdd(List<Book> catalog, Map<String, String> params, int lines) throws Exception {
+            measure("cartAdd", "avgt", "ns/op", 1, 1, withLines(params, lines), deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    Cart cart = new Cart();
+                    for (int i = 0; i < lines; i++) {
+                        cart.addBook(catalog.get(i));
+                    }
+                    ops += lines;
+                    sink = cart.getItemCount();
+                }
+                return ops;
+            });
+        }
+
+        private void cartGetTotal(List<Book> catalog, Map<String, String> params, int lines) throws Exception {
+            Cart cart = new Cart();
+            for (int i = 0; i < lines; i++) {
+                cart.addBook(catalog.get(i), 1 + i % 3);
+            }
+            measure("cartGetTotal", "avgt", "ns/op", 1, 1, withLines(params, lines), deadline -> {
+                long ops = 0;
+                double total = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1_024; i++) {
+                        total += cart.getTotal();
+                    }
+                    ops += 1_024;
+                }
+                sink = (long) total;
+                return ops;
+            });
+        }
+
+        // Exact-title search for random books; every lookup must find its book.
+        private void titleLookup(Inventory inventory, List<Book> catalog, Map<String, String> params) throws Exception {
+            Random random = new Random(3);
+            Book[] targets = new Book[1_024];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = catalog.get(random.nextInt(catalog.size()));
+            }
+            measure("titleLookup", "avgt", "us/op", 1e3, 1, params, deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    Book target = targets[(int) (ops & (targets.length - 1))];
+                    List<Book> found = inventory.search(target.getTitle(), 1);
+                    if (found.isEmpty() || found.get(0) != target) {
+                        throw new IllegalStateException("Lookup missed " + target.getTitle());
+                    }
+                    ops++;
+                }
+                return ops;
+            });
+        }
+
+        // Paints rows for books spread over the whole catalog, as a fast scroll would.
+        private void renderRow(List<Book> catalog, Map<String, String> params) throws Exception {
+            JList<Book> list = new JList<>();
+            list.setSize(RENDER_WIDTH, 10_000);
+            CellRendererPane pane = new CellRendererPane();
+            list.add(pane);
+            BookCellRenderer renderer = new BookCellRenderer();
+            int height = renderer.getListCellRendererComponent(list, catalog.get(0), 0, false, false).getPreferredSize().height;
+            BufferedImage image = new BufferedImage(RENDER_WIDTH, height, BufferedImage.TYPE_INT_RGB);
+            int stride = Math.max(1, catalog.size() / 4_096);
+            measure("renderRow", "avgt", "ns/op", 1, 1, params, deadline -> {
+                Graphics2D g = image.createGraphics();
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 256; i++, ops++) {
+                        int index = (int) ((ops * stride) % catalog.size());
+                        Component c = renderer.getListCellRendererComponent(list, catalog.get(index), index, false, false);
+                        pane.paintComponent(g, c, list, 0, 0, RENDER_WIDTH, height, true);
+                    }
+                }
+                g.dispose();
+                return ops;
+            });
+        }
+
+        private Map<String, String> withLines(Map<String, String> params, int lines) {
+            LinkedHashMap<String, String> copy = new LinkedHashMap<>(params);
+            copy.put("cartLines", Integer.toString(lines));
+            return copy;
+        }
+
+        // Timed iterations of body. unitNanos is the length of the reporting unit in ns
+        // (1 for ns/op, 1e3 for us/op, 1e6 for ops/ms).
+        private void measure(String name, String mode, String unit, double unitNanos, int threads,
+                Map<String, String> params, Iteration body) throws Exception {
+            boolean large = Integer.parseInt(params.get("books")) >= LARGE_CATALOG;
+            int warmups = large ? LARGE_WARMUP_ITERATIONS : WARMUP_ITERATIONS;
+            double[] scores = new double[large ? LARGE_MEASURE_ITERATIONS : MEASURE_ITERATIONS];
+            for (int i = -warmups; i < scores.length; i++) {
+                long start = System.nanoTime();
+                long ops = body.run(start + TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS));
+                long elapsed = System.nanoTime() - start;
+                if (i >= 0) {
+                    scores[i] = mode.equals("thrpt") ? ops * unitNanos / elapsed : elapsed / unitNanos / ops;
+                }
+            }
+            record(new Result(name, mode, unit, threads, warmups, params, scores));
+        }
+
+        private void record(Result result) {
+            results.add(result);
+            System.out.printf("%-14s %10s %6s %16.3f %12.3f  %s%n", result.name, result.params.get("books"),
+                    result.mode, result.score, result.error, result.unit);
+        }
+
+        // The subset of JMH's JSON result format that JMH's own tooling and visualizers read.
+        private String toJson() {
+            StringBuilder json = new StringBuilder("[\n");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                json.append("  {\n    \"benchmark\" : ");
+                quote(json, "BookstoreSystem.BenchmarkSuite." + result.name);
+                json.append(",\n    \"mode\" : \"").append(result.mode).append('"')
+                        .append(",\n    \"threads\" : ").append(result.threads)
+                        .append(",\n    \"forks\" : 0")
+                        .append(",\n    \"jvm\" : ");
+                quote(json, System.getProperty("java.home"));
+                json.append(",\n    \"jdkVersion\" : ");
+                quote(json, System.getProperty("java.version"));
+                json.append(",\n    \"vmName\" : ");
+                quote(json, System.getProperty("java.vm.name"));
+                json.append(",\n    \"vmVersion\" : ");
+                quote(json, System.getProperty("java.vm.version"));
+                json.append(",\n    \"warmupIterations\" : ").append(result.warmups)
+                        .append(",\n    \"warmupTime\" : \"").append(ITERATION_MILLIS).append(" ms\"")
+                        .append(",\n    \"measurementIterations\" : ").append(result.scores.length)
+                        .append(",\n    \"measurementTime\" : \"").append(ITERATION_MILLIS).append(" ms\"")
+                        .append(",\n    \"params\" : {");
+                String separator = "";
+                for (Map.Entry<String, String> param : new TreeMap<>(result.params).entrySet()) {
+                    json.append(separator).append("\n      ");
+                    quote(json, param.getKey());
+                    json.append(" : ");
+                    quote(json, param.getValue());
+                    separator = ",";
+                }
+                json.append("\n    },\n    \"primaryMetric\" : {")
+                        .append("\n      \"score\" : ").append(number(result.score))
+                        .append(",\n      \"scoreError\" : ").append(number(result.error))
+                        .append(",\n      \"scoreConfidence\" : [ ").append(number(result.score - result.error))
+                        .append(", ").append(number(result.score + result.error)).append(" ]")
+                        .append(",\n      \"scoreUnit\" : \"").append(result.unit).append('"')
+                        .append(",\n      \"rawData\" : [ [ ");
+                for (int i = 0; i < result.scores.length; i++) {
+                    json.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+                }
+                json.append(" ] ]\n    },\n    \"secondaryMetrics\" : {}\n  }").append(r + 1 < results.size() ? ",\n" : "\n");
+            }
+            return json.append("]\n").toString();
+        }
+
+        private String number(double value) {
+            return Double.isNaN(value) ? "\"NaN\"" : Double.toString(value);
+        }
+    }
+
+    // --- Session Store ---
+    // Sessions for many simultaneous shoppers, with bounded memory. A session id is a random
+    // 64-bit number. Ids are split over STRIPES stripes, each with its own lock, so lookups
+    // for different shoppers rarely meet. Each stripe keeps its live sessions in an
+    // access-ordered LinkedHashMap, oldest first. Once a stripe holds more than its share of
+    // maxResident, or its oldest session has been idle for idleMillis, that session is
+    // spilled. Spilling hands the cart's held copies back to stock and appends the cart to the
+    // spill files as (book id, quantity) pairs. Afterwards the session costs one slot in the
+    // stripe's open-addressed long->long index, about 16-32 bytes, mapping its id to the record.
+    // The next lookup reads the record back and holds the copies again, or as many lines as
+    // are still in stock. Anything handed out by acquire() is pinned until release() and is
+    // never spilled, so a request can't lose its cart midway.
+    // Only the choice of what to move happens under a stripe's lock. The file I/O and the drops
+    // and holds (remote calls under sharding) happen after it is released, while the session
+    // sits in the stripe's moving map; a lookup for that one session waits for it, and nobody
+    // else in the stripe does.
+    // Records go to segment files, a new one every expireMillis / SEGMENTS_PER_TTL. A spilled
+    // session left alone for expireMillis is forgotten, and a segment is deleted once all its
+    // records are that old, so the index and the files only hold the last expireMillis' worth.
+    class SessionStore {
+        private static final int STRIPES = 64;
+        private static final long MISSING = Long.MIN_VALUE;
+        private static final int MAX_SPILLED_LINES = 0xFFFF;
+        private static final int SEGMENTS_PER_TTL = 8;
+
+        private final Inventory inventory;
+        private final Reservations reservations;
+        private final int maxPerStripe;
+        private final long idleMillis;
+        private final long expireMillis;
+        private final long segmentMillis;
+        private final Path spillDir;
+        // Records have offsets in one address space cut into segments, each keyed by its first
+        // offset. Appends and segment changes hold spillLock; reads just look the segment up.
+        private final Object spillLock = new Object();
+        private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+        private long spillEnd;
+        private final AtomicLong nextExpiry = new AtomicLong();
+        private final java.security.SecureRandom random = new java.security.SecureRandom();
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        private final LongAdder spills = new LongAdder();
+        private final LongAdder reloads = new LongAdder();
+
+        SessionStore(Inventory inventory, Reservations reservations, Path spillDir, int maxResident, long idleMillis,
+                long expireMillis) throws IOException {
+            this.inventory = inventory;
+            this.reservations = reservations;
+            this.maxPerStripe = Math.max(1, maxResident / STRIPES);
+            this.idleMillis = idleMillis;
+            this.expireMillis = expireMillis;
+            this.segmentMillis = Math.max(1_000, expireMillis / SEGMENTS_PER_TTL);
+            this.spillDir = Files.createDirectories(spillDir);
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        class Session {
+            private final long id;
+            private final User user;
+            private long lastAccess;
+            private int pins;
+
+            Session(long id, Cart cart) {
+                this.id = id;
+                this.user = new User("Shopper " + idText(id).substring(0, 8), cart);
+            }
+
+            public long getId() { return id; }
+            public User getUser() { return user; }
+        }
+
+        // One lock's worth of sessions: live ones in LRU order, the ones being spilled or
+        // reloaded, and the index of spilled ones. Every field is guarded by the stripe's monitor,
+        // which is also notified whenever a session leaves moving.
+        private class Stripe {
+            final LinkedHashMap<Long, Session> resident = new LinkedHashMap<>(16, 0.75f, true);
+            final HashMap<Long, Session> moving = new HashMap<>();
+            long[] spilledIds = new long[16];
+            long[] spilledAt = new long[16];
+            int spilledCount;
+
+            // (offset << 16) | lines of the id's spill record, or MISSING.
+            long spilled(long id) {
+                int mask = spilledIds.length - 1;
+                for (int i = slot(id, mask); spilledIds[i] != 0; i = (i + 1) & mask) {
+                    if (spilledIds[i] == id) {
+                        return spilledAt[i];
+                    }
+                }
+                return MISSING;
+            }
+
+            void addSpilled(long id, long at) {
+                if (spilledCount * 2 >= spilledIds.length) {
+                    long[] ids = spilledIds;
+                    long[] ats = spilledAt;
+                    spilledIds = new long[ids.length * 2];
+                    spilledAt = new long[ids.length * 2];
+                    spilledCount = 0;
+                    for (int i = 0; i < ids.length; i++) {
+                        if (ids[i] != 0) {
+                            addSpilled(ids[i], ats[i]);
+                        }
+                    }
+                }
+                int mask = spilledIds.length - 1;
+                int i = slot(id, mask);
+                while (spilledIds[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                spilledIds[i] = id;
+                spilledAt[i] = at;
+                spilledCount++;
+            }
+
+            // Linear probing, so removal shifts later entries of the run back into the hole.
+            void removeSpilled(long id) {
+                int mask = spilledIds.length - 1;
+                int i = slot(id, mask);
+                while (spilledIds[i] != id) {
+                    if (spilledIds[i] == 0) {
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+                int hole = i;
+                for (int j = (i + 1) & mask; spilledIds[j] != 0; j = (j + 1) & mask) {
+                    if (((j - slot(spilledIds[j], mask)) & mask) >= ((j - hole) & mask)) {
+                        spilledIds[hole] = spilledIds[j];
+                        spilledAt[hole] = spilledAt[j];
+                        hole = j;
+                    }
+                }
+                spilledIds[hole] = 0;
+                spilledCount--;
+            }
+
+            // Forgets every session whose record lies before offset cutoff, rebuilding the
+            // index at a size that fits the rest; returns how many went.
+            int expireBefore(long cutoff) {
+                long[] ids = spilledIds;
+                long[] ats = spilledAt;
+                int before = spilledCount;
+                spilledIds = new long[16];
+                spilledAt = new long[16];
+                spilledCount = 0;
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] != 0 && (ats[i] >>> 16) >= cutoff) {
+                        addSpilled(ids[i], ats[i]);
+                    }
+                }
+                return before - spilledCount;
+            }
+
+            private int slot(long id, int mask) {
+                return (int) (id ^ (id >>> 32)) & mask;
+            }
+        }
+
+        // One spill file, holding the records from offset start up to the next segment's start.
+        private class Segment {
+            final long start;
+            final long opened;
+            final Path path;
+            final FileChannel channel;
+            volatile long lastWrite;
+
+            Segment(long start, long now) throws IOException {
+                this.start = start;
+                this.opened = now;
+                this.lastWrite = now;
+                this.path = spillDir.resolve("sessions-" + start + ".spill");
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            void delete() {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Could not remove session spill file " + path + ": " + e);
+                }
+            }
+        }
+
+        // Starts a session with an empty cart. The session is not pinned.
+        public Session create() {
+            long id;
+            do {
+                id = random.nextLong();
+            } while (id == 0);
+            Session session = new Session(id, new Cart());
+            Stripe stripe = stripe(id);
+            List<Session> evicted;
+            synchronized (stripe) {
+                session.lastAccess = System.currentTimeMillis();
+                stripe.resident.put(id, session);
+                evicted = trim(stripe, session.lastAccess);
+            }
+            spillAll(stripe, evicted);
+            expireIfDue();
+            return session;
+        }
+
+        // The session for id, reloaded from the spill files if need be and pinned until
+        // release(); null for an unknown or malformed id.
+        public Session acquire(String idText) {
+            long id;
+            try {
+                id = Long.parseUnsignedLong(idText, 16);
+            } catch (NumberFormatException | NullPointerException e) {
+                return null;
+            }
+            return acquire(id);
+        }
+
+        public Session acquire(long id) {
+            Stripe stripe = stripe(id);
+            Session session;
+            long at = MISSING;
+            List<Session> evicted = Collections.emptyList();
+            synchronized (stripe) {
+                while (stripe.moving.containsKey(id)) {
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                session = stripe.resident.get(id);
+                if (session == null) {
+                    at = id == 0 ? MISSING : stripe.spilled(id);
+                    if (at == MISSING) {
+                        return null;
+                    }
+                    stripe.removeSpilled(id);
+                    session = new Session(id, new Cart());
+                    stripe.moving.put(id, session);
+                }
+                session.pins++;
+                session.lastAccess = System.currentTimeMillis();
+                if (at == MISSING) {
+                    evicted = trim(stripe, session.lastAccess);
+                }
+            }
+            if (at != MISSING) {
+                try {
+                    reload(session.user.getCart(), at);
+                } finally {
+                    synchronized (stripe) {
+                        stripe.moving.remove(id);
+                        stripe.resident.put(id, session);
+                        evicted = trim(stripe, System.currentTimeMillis());
+                        stripe.notifyAll();
+                    }
+                }
+            }
+            spillAll(stripe, evicted);
+            expireIfDue();
+            return session;
+        }
+
+        public void release(Session session) {
+            synchronized (stripe(session.id)) {
+                session.pins--;
+                session.lastAccess = System.currentTimeMillis();
+            }
+        }
+
+        // Picks sessions to spill from the oldest end of the stripe while it is over its share
+        // or idle, and moves them out of resident. A pinned session at the head stops the walk;
+        // it'll be looked at again next time. Callers hold the stripe's lock, and pass the
+        // result to spillAll once they've let go of it.
+        private List<Session> trim(Stripe stripe, long now) {
+            ArrayList<Session> evicted = null;
+            Iterator<Session> oldest = stripe.resident.values().iterator();
+            while (oldest.hasNext()) {
+                Session session = oldest.next();
+                if (session.pins > 0 || (stripe.resident.size() <= maxPerStripe && now - session.lastAccess < idleMillis)) {
+                    break;
+                }
+                oldest.remove();
+                stripe.moving.put(session.id, session);
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(session);
+            }
+            return evicted == null ? Collections.emptyList() : evicted;
+        }
+
+        private void spillAll(Stripe stripe, List<Session> evicted) {
+            for (Session session : evicted) {
+                long at = MISSING;
+                try {
+                    at = spill(session);
+                } finally {
+                    synchronized (stripe) {
+                        stripe.moving.remove(session.id);
+                        if (at == MISSING) {
+                            stripe.resident.put(session.id, session); // couldn't write it out; keep it in memory
+                        } else {
+                            stripe.addSpilled(session.id, at);
+                        }
+                        stripe.notifyAll();
+                    }
+                }
+            }
+        }
+
+        private long spill(Session session) {
+            Cart cart = session.user.getCart();
+            ByteBuffer record;
+            synchronized (cart) {
+                List<CartLine> lines = cart.getLines();
+                int count = Math.min(lines.size(), MAX_SPILLED_LINES);
+                record = ByteBuffer.allocate(count * 8);
+                for (CartLine line : new ArrayList<>(lines.subList(0, count))) {
+                    int dropped = reservations.drop(cart, line.getBook(), line.getQuantity());
+                    if (dropped > 0) {
+                        record.putInt(line.getBook().getId()).putInt(dropped);
+                    }
+                }
+                for (CartLine line : new ArrayList<>(cart.getLines())) {
+                    reservations.drop(cart, line.getBook(), line.getQuantity()); // past MAX_SPILLED_LINES
+                }
+            }
+            record.flip();
+            long offset;
+            try {
+                offset = append(record);
+            } catch (IOException e) {
+                metrics.sessionSpillErrors.increment();
+                reload(cart, record.rewind());
+                return MISSING;
+            }
+            spills.increment();
+            metrics.sessionSpills.increment();
+            return (offset << 16) | (record.limit() / 8);
+        }
+
+        // Writes record at the end of the newest segment, starting a new segment once the
+        // current one has been open for segmentMillis and has something in it (empty carts
+        // write nothing, and two segments can't share a start); returns the record's offset.
+        private long append(ByteBuffer record) throws IOException {
+            synchronized (spillLock) {
+                long now = System.currentTimeMillis();
+                Map.Entry<Long, Segment> newest = segments.lastEntry();
+                Segment segment = newest == null ? null : newest.getValue();
+                if (segment == null || (now - segment.opened >= segmentMillis && spillEnd > segment.start)) {
+                    segment = new Segment(spillEnd, now);
+                    segments.put(spillEnd, segment);
+                }
+                long offset = spillEnd;
+                for (long position = offset - segment.start; record.hasRemaining(); ) {
+                    position += segment.channel.write(record, position);
+                }
+                spillEnd += record.limit();
+                segment.lastWrite = now;
+                return offset;
+            }
+        }
+
+        private void reload(Cart cart, long at) {
+            long start = System.nanoTime();
+            ByteBuffer record = ByteBuffer.allocate((int) (at & 0xFFFF) * 8);
+            try {
+                if (record.hasRemaining()) { // an empty cart wrote nothing
+                    read(at >>> 16, record);
+                }
+                reload(cart, record.flip());
+            } catch (IOException e) {
+                metrics.sessionSpillErrors.increment(); // the session comes back with an empty cart
+            }
+            reloads.increment();
+            metrics.sessionReload.record(System.nanoTime() - start);
+        }
+
+        private void read(long offset, ByteBuffer record) throws IOException {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                throw new IOException("No spill segment holds offset " + offset);
+            }
+            Segment segment = entry.getValue();
+            for (long position = offset - segment.start; record.hasRemaining(); ) {
+                int read = segment.channel.read(record, position);
+                if (read < 0) {
+                    throw new IOException("Spill file " + segment.path + " ends at " + position);
+                }
+                position += read;
+            }
+        }
+
+        // Holds the recorded copies again; a line no longer in stock stays out of the cart.
+        private void reload(Cart cart, ByteBuffer record) {
+            while (record.remaining() >= 8) {
+                Book book = inventory.getBook(record.getInt());
+                int quantity = record.getInt();
+                if (book == null || !reservations.restore(cart, book, quantity)) {
+                    metrics.sessionLinesLost.increment();
+                }
+            }
+        }
+
+        // At most once per segment period, by whichever caller gets there first: drops every
+        // segment not written to for expireMillis, then forgets the sessions spilled into it.
+        // A reload racing with this finds its segment gone and comes back empty, as it would a
+        // moment later anyway.
+        private void expireIfDue() {
+            long now = System.currentTimeMillis();
+            long due = nextExpiry.get();
+            if (now < due || !nextExpiry.compareAndSet(due, now + segmentMillis)) {
+                return;
+            }
+            ArrayList<Segment> expired = new ArrayList<>();
+            long cutoff;
+            synchronized (spillLock) {
+                for (Segment segment : segments.values()) {
+                    if (now - segment.lastWrite < expireMillis) {
+                        break;
+                    }
+                    expired.add(segment);
+                    segments.remove(segment.start);
+                }
+                cutoff = segments.isEmpty() ? spillEnd : segments.firstKey();
+            }
+            if (expired.isEmpty()) {
+                return;
+            }
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    metrics.sessionExpired.add(stripe.expireBefore(cutoff));
+                }
+            }
+            for (Segment segment : expired) {
+                segment.delete();
+            }
+        }
+
+        private Stripe stripe(long id) {
+            return stripes[(int) (id >>> 58) & (STRIPES - 1)];
+        }
+
+        String idText(long id) {
+            String hex = Long.toHexString(id);
+            return "0".repeat(16 - hex.length()) + hex;
+        }
+
+        public int getResident() {
+            int total = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    total += stripe.resident.size();
+                }
+            }
+            return total;
+        }
+
+        public int getSpilled() {
+            int total = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    total += stripe.spilledCount;
+                }
+            }
+            return total;
+        }
+
+        public long getSpills() { return spills.sum(); }
+        public long getReloads() { return reloads.sum(); }
+
+        // Bytes in the spill files still on disk.
+        public long getSpillBytes() {
+            synchronized (spillLock) {
+                return segments.isEmpty() ? 0 : spillEnd - segments.firstKey();
+            }
+        }
+
+        // Drops the spill files. Carts still in memory keep their holds until they expire.
+        public void close() throws IOException {
+            synchronized (spillLock) {
+                for (Segment segment : segments.values()) {
+                    segment.delete();
+                }
+                segments.clear();
+            }
+            Files.deleteIfExists(spillDir);
+        }
+    }
+
+    // --- Session Store Benchmark ---
+    // Opens many sessions with a couple of held books each, then times lookups that hit a
+    // live session and lookups that must reload a spilled one, and reports heap per session.
+    // Run with: java BookstoreSystem.java bench-sessions [sessions] [resident]
+    class SessionStoreBenchmark {
+        public void run(int sessions, int maxResident) throws IOException, InterruptedException {
+            Inventory inventory = new LocalInventory();
+            inventory.addBooks(new SyntheticCatalog().books(10_000, 17));
+            for (int id = 0; id < inventory.size(); id++) {
+                inventory.setStock(inventory.getBook(id), 1_000_000);
+            }
+            Reservations reservations = new Reservations(inventory, TimeUnit.MINUTES.toMillis(15), 1_000);
+            SessionStore store = new SessionStore(inventory, reservations, Files.createTempDirectory("readnest-bench-sessions"),
+                    maxResident, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+            Random random = new Random(3);
+            try {
+                long baseline = usedHeap();
+                long[] ids = new long[sessions];
+                long start = System.nanoTime();
+                for (int i = 0; i < sessions; i++) {
+                    SessionStore.Session session = store.create();
+                    ids[i] = session.getId();
+                    for (int line = 0; line < 2; line++) {
+                        reservations.hold(session.getUser().getCart(), inventory.getBook(random.nextInt(10_000)), 1);
+                    }
+                }
+                long createNanos = System.nanoTime() - start;
+                long heap = usedHeap() - baseline - (long) sessions * 8; // less the benchmark's own id array
+                System.out.printf("%,d sessions created in %,d ms (%.0f ns each); %,d resident, %,d spilled, spill file %.1f MB%n",
+                        sessions, createNanos / 1_000_000, (double) createNanos / sessions, store.getResident(),
+                        store.getSpilled(), store.getSpillBytes() / 1048576.0);
+                System.out.printf("heap %.1f MB, %.1f bytes/session%n", heap / 1048576.0, (double) heap / sessions);
+
+                // The most recently created sessions are the live ones
+                int hot = Math.min(maxResident / 2, sessions);
+                lookups("resident hits", store, ids, sessions - hot, sessions, random);
+                lookups("spilled reloads", store, ids, 0, sessions - maxResident, random);
+                System.out.printf("after lookups: %,d resident, %,d spilled, %,d reloads, spill file %.1f MB%n",
+                        store.getResident(), store.getSpilled(), store.getReloads(), store.getSpillBytes() / 1048576.0);
+            } finally {
+                store.close();
+                reservations.close();
+            }
+        }
+
+        private void lookups(String label, SessionStore store, long[] ids, int from, int to, Random random) {
+            if (to <= from) {
+                return;
+            }
+            int count = Math.min(200_000, to - from);
+            LatencyHistogram latency = new LatencyHistogram(1);
+            for (int i = 0; i < count; i++) {
+                long id = ids[from + random.nextInt(to - from)];
+                long start = System.nanoTime();
+                SessionStore.Session session = store.acquire(id);
+                latency.record(System.nanoTime() - start);
+                store.release(session);
+            }
+            LatencyHistogram.Summary summary = latency.summary();
+            System.out.printf("%-16s %,9d lookups  mean %7.0f ns  p50 %7d  p99 %8d  p999 %8d%n", label, count,
+                    summary.meanNanos, summary.p50, summary.p99, summary.p999);
+        }
+
+        private long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    // --- Storefront Server ---
+    // Headless JSON storefront over the JDK's built-in HTTP server, so many shoppers can share
+    // one Inventory. Each request runs on its own virtual thread (JDK 21+; older JDKs fall back
+    // to a bounded platform pool). A shopper is identified by the session id returned from
+    // POST /api/session and passed back as ?session=. Sessions live in a SessionStore: at most
+    // -Dreadnest.sessions.resident (default 100,000) stay in memory, idle ones spill to a temp
+    // directory after -Dreadnest.sessions.idleMinutes (default 30), and spilled ones are
+    // forgotten after -Dreadnest.sessions.expireHours (default 24). It listens on loopback
+    // only; -Dreadnest.bind=0.0.0.0 opens it to the network.
+    //
+    //   GET  /api/books?offset=0&limit=50   browse the catalog in order
+    //   GET  /api/search?q=...&limit=20     ranked title/author search
+    //   POST /api/session                   start a session
+    //   GET  /api/cart?session=...          cart lines and total
+    //   POST /api/cart/add?session=...&id=...&qty=1   (id=1,2&qty=1,3 holds several, all or nothing)
+    //   POST /api/checkout?session=...
+    //   GET  /api/bestsellers?limit=10      top titles by units sold
+    //   GET  /api/together?id=...&limit=5   titles most often in the same order
+    class StorefrontServer {
+        private static final int MAX_PAGE = 500;
+        private static final long CHECKOUT_TIMEOUT_SECONDS = 10;
+
+        private final Inventory inventory;
+        private final Reservations reservations;
+        private final OrderPipeline orders;
+        private final SalesAnalytics analytics;
+        private SessionStore sessions;
+        private HttpServer server;
+        private ExecutorService executor;
+
+        StorefrontServer(Inventory inventory, Reservations reservations, OrderPipeline orders, SalesAnalytics analytics) {
+            this.inventory = inventory;
+            this.reservations = reservations;
+            this.orders = orders;
+            this.analytics = analytics;
+        }
+
+        public int start(int port) throws IOException {
+            // Headers and body go out as separate writes; without TCP_NODELAY every small
+            // response waits out Nagle plus the client's delayed ACK (~40 ms).
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            sessions = new SessionStore(inventory, reservations, Files.createTempDirectory("readnest-sessions"),
+                    Integer.getInteger("readnest.sessions.resident", 100_000),
+                    TimeUnit.MINUTES.toMillis(Integer.getInteger("readnest.sessions.idleMinutes", 30)),
+                    TimeUnit.HOURS.toMillis(Integer.getInteger("readnest.sessions.expireHours", 24)));
+            // Loopback only unless -Dreadnest.bind names another address (0.0.0.0 for all).
+            String bind = System.getProperty("readnest.bind");
+            InetAddress address = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+            server = HttpServer.create(new InetSocketAddress(address, port), 1_024);
+            executor = requestExecutor();
+            server.setExecutor(executor);
+            server.createContext("/api/books", exchange -> handle(exchange, "GET", this::books));
+            server.createContext("/api/search", exchange -> handle(exchange, "GET", this::search));
+            server.createContext("/api/session", exchange -> handle(exchange, "POST", this::newSession));
+            server.createContext("/api/cart/add", exchange -> handle(exchange, "POST", this::addToCart));
+            server.createContext("/api/cart/remove", exchange -> handle(exchange, "POST", this::removeFromCart));
+            server.createContext("/api/cart", exchange -> handle(exchange, "GET", this::cart));
+            server.createContext("/api/checkout", exchange -> handle(exchange, "POST", this::checkout));
+            server.createContext("/api/holds", exchange -> handle(exchange, "GET", this::holds));
+            server.createContext("/api/bestsellers", exchange -> handle(exchange, "GET", this::bestsellers));
+            server.createContext("/api/together", exchange -> handle(exchange, "GET", this::together));
+            server.createContext("/api/metrics", exchange -> handle(exchange, "GET",
+                    params -> new Response(200, metrics.snapshot().toJson())));
+            server.start();
+            return server.getAddress().getPort();
+        }
+
+        // Also safe before start() or after one that failed partway.
+        public void stop() {
+            if (server != null) {
+                server.stop(0);
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (sessions != null) {
+                try {
+                    sessions.close();
+                } catch (IOException e) {
+                    System.err.println("Could not remove session spill files: " + e);
+                }
+            }
+        }
+
+        interface Endpoint {
+            Response serve(Map<String, String> params);
+        }
+
+        class Response {
+            final int status;
+            final String json;
+
+            Response(int status, String json) {
+                this.status = status;
+                this.json = json;
+            }
+        }
+
+        // Bad parameters are a 400. Anything else an endpoint throws (a shard gone, the order
+        // pipeline closed) is a 500, so the client always gets an answer.
+        private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+            long start = System.nanoTime();
+            try {
+                Response response;
+                try {
+                    if (!exchange.getRequestMethod().equals(method)) {
+                        response = error(405, "Use " + method);
+                    } else {
+                        response = endpoint.serve(queryParams(exchange.getRequestURI().getRawQuery()));
+                    }
+                } catch (IllegalArgumentException e) {
+                    response = error(400, e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("Request " + exchange.getRequestURI() + " failed: " + e);
+                    response = error(500, "Internal error");
+                }
+                byte[] body = response.json.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(response.status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                metrics.httpRequest.record(System.nanoTime() - start);
+            }
+        }
+
+        private Response books(Map<String, String> params) {
+            int offset = intParam(params, "offset", 0, 0);
+            int limit = Math.min(intParam(params, "limit", 50, 0), MAX_PAGE);
+            StringBuilder json = new StringBuilder(64 * limit + 32);
+            json.append("{\"total\":").append(inventory.size()).append(",\"books\":");
+            appendBooks(json, inventory.getBooks(offset, limit));
+            return new Response(200, json.append('}').toString());
+        }
 
-        public Book(String title, String author, double price, int stock) {
-            this.title = title;
-            this.author = author;
-            this.price = price;
-            this.stock = stock;
+        private Response search(Map<String, String> params) {
+            int limit = Math.min(intParam(params, "limit", 20, 0), MAX_PAGE);
+            StringBuilder json = new StringBuilder("{\"books\":");
+            appendBooks(json, inventory.search(params.getOrDefault("q", ""), limit));
+            return new Response(200, json.append('}').toString());
         }
 
-        public String getTitle() { return title; }
-        public String getAuthor() { return author; }
-        public double getPrice() { return price; }
-        public int getStock() { return stock; }
-        public void setStock(int stock) { this.stock = stock; }
+        private Response newSession(Map<String, String> params) {
+            return new Response(201, "{\"session\":\"" + sessions.idText(sessions.create().getId()) + "\"}");
+        }
 
-        @Override
-        public String toString() {
-            return title + " by " + author + " - ₹" + price + " (" + stock + " in stock)";
+        // Runs action with the request's session pinned, so it can't be spilled midway.
+        private Response withSession(Map<String, String> params, java.util.function.Function<User, Response> action) {
+            SessionStore.Session session = sessions.acquire(params.get("session"));
+            if (session == null) {
+                return error(404, "Unknown session");
+            }
+            try {
+                return action.apply(session.getUser());
+            } finally {
+                sessions.release(session);
+            }
         }
-    }
 
-    // --- Cart Class ---
-    class Cart {
-        private ArrayList<Book> cartItems = new ArrayList<>();
+        private Response addToCart(Map<String, String> params) {
+            return withSession(params, user -> addToCart(user, params));
+        }
 
-        public void addBook(Book book) {
-            cartItems.add(book);
+        // id and qty may be comma-separated lists; several titles are held all or nothing.
+        private Response addToCart(User user, Map<String, String> params) {
+            String[] ids = params.getOrDefault("id", "-1").split(",");
+            String[] quantities = params.getOrDefault("qty", "1").split(",");
+            if (quantities.length != 1 && quantities.length != ids.length) {
+                return error(400, "qty must be one number, or one per id");
+            }
+            LinkedHashMap<Book, Integer> lines = new LinkedHashMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                Book book = inventory.getBook(parseInt("id", ids[i]));
+                if (book == null) {
+                    return error(404, "Unknown book");
+                }
+                int quantity = parseInt("qty", quantities[quantities.length == 1 ? 0 : i]);
+                if (quantity <= 0) {
+                    return error(400, "qty must be positive");
+                }
+                lines.merge(book, quantity, Integer::sum);
+            }
+            boolean held;
+            if (lines.size() == 1) {
+                Map.Entry<Book, Integer> line = lines.entrySet().iterator().next();
+                held = reservations.hold(user.getCart(), line.getKey(), line.getValue());
+            } else {
+                held = reservations.holdAll(user.getCart(), new ArrayList<>(lines.keySet()),
+                        lines.values().stream().mapToInt(Integer::intValue).toArray());
+            }
+            if (!held) {
+                return error(409, "Out of stock");
+            }
+            return new Response(200, cartJson(user.getCart()));
         }
 
-        public ArrayList<Book> getItems() {
-            return cartItems;
+        private Response removeFromCart(Map<String, String> params) {
+            return withSession(params, user -> removeFromCart(user, params));
         }
 
-        public double getTotal() {
-            return cartItems.stream().mapToDouble(Book::getPrice).sum();
+        private Response removeFromCart(User user, Map<String, String> params) {
+            Book book = inventory.getBook(intParam(params, "id", -1));
+            if (book == null) {
+                return error(404, "Unknown book");
+            }
+            int quantity = intParam(params, "qty", Integer.MAX_VALUE);
+            if (quantity <= 0) {
+                return error(400, "qty must be positive");
+            }
+            reservations.drop(user.getCart(), book, quantity);
+            return new Response(200, cartJson(user.getCart()));
         }
 
-        public void clear() {
-            cartItems.clear();
+        private Response cart(Map<String, String> params) {
+            return withSession(params, user -> new Response(200, cartJson(user.getCart())));
         }
-    }
 
-    // --- User Class ---
-    class User {
-        private String name;
-        private Cart cart;
+        private Response checkout(Map<String, String> params) {
+            return withSession(params, this::checkout);
+        }
 
-        public User(String name) {
-            this.name = name;
-            this.cart = new Cart();
+        private Response checkout(User user) {
+            // The request thread waits for its batch to commit, up to CHECKOUT_TIMEOUT_SECONDS;
+            // a full queue holds it at submit. An order that outlasts the wait may still go
+            // through, which the shopper sees as an empty cart.
+            CompletableFuture<OrderPipeline.Order> placed = new CompletableFuture<>();
+            OrderPipeline.Order order;
+            try {
+                orders.submit(user.getName(), user.getCart(), placed::complete);
+                order = placed.get(CHECKOUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                return error(503, "Checkout is taking too long; check the cart before retrying");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return error(503, "Checkout interrupted");
+            } catch (ExecutionException e) {
+                return error(503, "Checkout interrupted");
+            }
+            if (order.getStatus() == OrderPipeline.Status.REJECTED) {
+                return error(409, "Cart is empty");
+            } else if (order.getStatus() == OrderPipeline.Status.FAILED) {
+                return error(503, order.getProblem());
+            }
+            return new Response(200, "{\"order\":" + order.getId() + ",\"items\":" + order.getItemCount()
+                    + ",\"totalPaise\":" + order.getTotalPaise()
+                    + ",\"total\":\"" + formatRupees(order.getTotalPaise()) + "\"}");
         }
 
-        public String getName() { return name; }
-        public Cart getCart() { return cart; }
+        private Response bestsellers(Map<String, String> params) {
+            StringBuilder json = new StringBuilder("{\"books\":");
+            appendRanked(json, analytics.bestsellers(Math.min(intParam(params, "limit", 10, 0), MAX_PAGE)));
+            return new Response(200, json.append('}').toString());
+        }
+
+        private Response together(Map<String, String> params) {
+            Book book = inventory.getBook(intParam(params, "id", -1));
+            if (book == null) {
+                return error(404, "Unknown book");
+            }
+            StringBuilder json = new StringBuilder("{\"books\":");
+            appendRanked(json, analytics.boughtWith(book, Math.min(intParam(params, "limit", 5, 0), MAX_PAGE)));
+            return new Response(200, json.append('}').toString());
+        }
+
+        private void appendRanked(StringBuilder json, List<SalesAnalytics.Ranked> ranked) {
+            json.append('[');
+            for (int i = 0; i < ranked.size(); i++) {
+                Book book = ranked.get(i).book;
+                json.append(i == 0 ? "{\"id\":" : ",{\"id\":").append(book.getId()).append(",\"title\":");
+                quote(json, book.getTitle());
+                json.append(",\"count\":").append(ranked.get(i).count)
+                        .append(",\"error\":").append(ranked.get(i).error).append('}');
+            }
+            json.append(']');
+        }
+
+        private Response holds(Map<String, String> params) {
+            return new Response(200, "{\"outstanding\":" + reservations.getOutstandingHolds()
+                    + ",\"heldUnits\":" + reservations.getHeldUnits()
+                    + ",\"confirmedUnits\":" + reservations.getConfirmedUnits()
+                    + ",\"droppedUnits\":" + reservations.getDroppedUnits()
+                    + ",\"expiredHolds\":" + reservations.getExpiredHolds()
+                    + ",\"reclaimedUnits\":" + reservations.getReclaimedUnits() + "}");
+        }
+
+        private String cartJson(Cart cart) {
+            StringBuilder json = new StringBuilder("{\"lines\":[");
+            synchronized (cart) {
+                List<CartLine> lines = cart.getLines();
+                for (int i = 0; i < lines.size(); i++) {
+                    CartLine line = lines.get(i);
+                    json.append(i == 0 ? "" : ",").append("{\"id\":").append(line.getBook().getId())
+                            .append(",\"title\":");
+                    quote(json, line.getBook().getTitle());
+                    json.append(",\"quantity\":").append(line.getQuantity())
+                            .append(",\"subtotalPaise\":").append(line.getSubtotalPaise()).append('}');
+                }
+                json.append("],\"items\":").append(cart.getItemCount())
+                        .append(",\"totalPaise\":").append(cart.getTotalPaise())
+                        .append(",\"total\":\"").append(formatRupees(cart.getTotalPaise())).append("\"}");
+            }
+            return json.toString();
+        }
+
+        private void appendBooks(StringBuilder json, List<Book> books) {
+            json.append('[');
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                json.append(i == 0 ? "{\"id\":" : ",{\"id\":").append(book.getId()).append(",\"title\":");
+                quote(json, book.getTitle());
+                json.append(",\"author\":");
+                quote(json, book.getAuthor());
+                json.append(",\"pricePaise\":").append(book.getPricePaise())
+                        .append(",\"stock\":").append(book.getStock()).append('}');
+            }
+            json.append(']');
+        }
+
+        private Response error(int status, String message) {
+            StringBuilder json = new StringBuilder("{\"error\":");
+            quote(json, message);
+            return new Response(status, json.append('}').toString());
+        }
+
+        private int intParam(Map<String, String> params, String name, int fallback, int minimum) {
+            int value = intParam(params, name, fallback);
+            if (value < minimum) {
+                throw new IllegalArgumentException(name + " must be at least " + minimum);
+            }
+            return value;
+        }
+
+        private int intParam(Map<String, String> params, String name, int fallback) {
+            String value = params.get(name);
+            return value == null ? fallback : parseInt(name, value);
+        }
+
+        private int parseInt(String name, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " must be a number");
+            }
+        }
+
+        private Map<String, String> queryParams(String rawQuery) {
+            HashMap<String, String> params = new HashMap<>();
+            if (rawQuery == null) {
+                return params;
+            }
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+            return params;
+        }
     }
 
-    // --- Inventory Class ---
-    class Inventory {
-        private ArrayList<Book> books = new ArrayList<>();
+    // Appends text as a JSON string literal.
+    static void quote(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
 
-        public void addBook(Book book) {
-            books.add(book);
+    // One virtual thread per task where the JDK has them (21+); otherwise a platform pool.
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(64, Runtime.getRuntime().availableProcessors() * 16));
         }
+    }
 
-        public ArrayList<Book> getBooks() {
-            return books;
+    // --- Storefront Load Test ---
+    // Drives a storefront with simulated shoppers at increasing concurrency and reports
+    // throughput and latency percentiles. With no URL it starts its own server on loopback
+    // over a synthetic catalog, so it needs nothing but the JDK.
+    // Run with: java BookstoreSystem.java loadtest [http://host:port]
+    class StorefrontLoadTest {
+        private static final long WARMUP_MILLIS = 1_000;
+        private static final long MEASURE_MILLIS = 5_000;
+        private final int[] concurrencyLevels = {1, 4, 16, 64, 256, 1_024};
+        private final String[] queries = {"java", "the", "hab", "tolkien", "python cr", "his"};
+
+        public void run(String target) throws Exception {
+            StorefrontServer local = null;
+            Reservations reservations = null;
+            OrderPipeline orders = null;
+            SalesAnalytics analytics = null;
+            Path orderLog = null;
+            if (target == null) {
+                Inventory inventory = new LocalInventory();
+                addDefaultBooks(BookstoreSystem.this, inventory);
+                for (int i = 0; i < 10_000; i++) {
+                    inventory.addBook(new Book("Load Test Title " + i, "Author " + (i % 500), 100 + i % 900, 1_000_000));
+                }
+                reservations = new Reservations(inventory, TimeUnit.MINUTES.toMillis(15), 1_000);
+                reservations.start();
+                orderLog = Files.createTempFile("readnest-loadtest-orders", ".log");
+                orders = new OrderPipeline(reservations, orderLog, 1_024, 256);
+                orders.start();
+                analytics = new SalesAnalytics(inventory, 1_024, 16_384, 65_536);
+                analytics.start(reservations, orders);
+                local = new StorefrontServer(inventory, reservations, orders, analytics);
+                target = "http://127.0.0.1:" + local.start(0);
+            }
+            ExecutorService shoppers = requestExecutor();
+            if (shoppers instanceof ThreadPoolExecutor) {
+                // A fixed platform pool would cap the number of simulated shoppers.
+                shoppers.shutdown();
+                shoppers = Executors.newCachedThreadPool();
+            }
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                    .executor(Executors.newCachedThreadPool()).build();
+            int books = total(client, target);
+
+            System.out.printf("%-12s %12s %10s %10s %10s %8s%n", "concurrency", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+            try {
+                for (int concurrency : concurrencyLevels) {
+                    runLevel(client, shoppers, target, books, concurrency);
+                }
+            } finally {
+                shoppers.shutdownNow();
+                if (local != null) {
+                    local.stop();
+                    orders.close();
+                    analytics.close();
+                    reservations.close();
+                    Files.deleteIfExists(orderLog);
+                }
+            }
         }
 
-        public synchronized boolean purchaseBook(Book book) {
-            if (book.getStock() > 0) {
-                book.setStock(book.getStock() - 1);
-                return true;
+        private void runLevel(HttpClient client, ExecutorService shoppers, String target, int books,
+                int concurrency) throws Exception {
+            AtomicBoolean measuring = new AtomicBoolean();
+            AtomicBoolean stop = new AtomicBoolean();
+            long[][] latencies = new long[concurrency][];
+            int[] counts = new int[concurrency];
+            AtomicInteger errors = new AtomicInteger();
+            CountDownLatch finished = new CountDownLatch(concurrency);
+            for (int s = 0; s < concurrency; s++) {
+                int shopper = s;
+                shoppers.execute(() -> {
+                    long[] mine = new long[1_024];
+                    int n = 0;
+                    try {
+                        String session = null;
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        while (!stop.get()) {
+                            int roll = random.nextInt(100);
+                            HttpRequest request;
+                            if (session == null) {
+                                session = sessionFrom(send(client, post(target + "/api/session")));
+                                continue;
+                            } else if (roll < 40) {
+                                request = get(target + "/api/books?limit=20&offset=" + random.nextInt(Math.max(1, books - 20)));
+                            } else if (roll < 70) {
+                                request = get(target + "/api/search?q=" + URLEncoder.encode(
+                                        queries[random.nextInt(queries.length)], StandardCharsets.UTF_8));
+                            } else if (roll < 95) {
+                                request = post(target + "/api/cart/add?session=" + session + "&id=" + random.nextInt(books));
+                            } else {
+                                request = post(target + "/api/checkout?session=" + session);
+                            }
+                            long start = System.nanoTime();
+                            HttpResponse<String> response = send(client, request);
+                            long elapsed = System.nanoTime() - start;
+                            if (response.statusCode() >= 500) {
+                                errors.incrementAndGet();
+                            }
+                            if (measuring.get()) {
+                                if (n == mine.length) {
+                                    mine = java.util.Arrays.copyOf(mine, n * 2);
+                                }
+                                mine[n++] = elapsed;
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latencies[shopper] = mine;
+                        counts[shopper] = n;
+                        finished.countDown();
+                    }
+                });
+            }
+            Thread.sleep(WARMUP_MILLIS);
+            measuring.set(true);
+            long begin = System.nanoTime();
+            Thread.sleep(MEASURE_MILLIS);
+            measuring.set(false);
+            long elapsed = System.nanoTime() - begin;
+            stop.set(true);
+            finished.await();
+
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            long[] all = new long[total];
+            int at = 0;
+            for (int s = 0; s < concurrency; s++) {
+                System.arraycopy(latencies[s], 0, all, at, counts[s]);
+                at += counts[s];
+            }
+            java.util.Arrays.sort(all);
+            System.out.printf("%-12d %12.0f %10.2f %10.2f %10.2f %8d%n", concurrency,
+                    total * 1_000_000_000.0 / elapsed, percentile(all, 0.50), percentile(all, 0.99),
+                    percentile(all, 0.999), errors.get());
+        }
+
+        private double percentile(long[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * p))] / 1_000_000.0;
+        }
+
+        private int total(HttpClient client, String target) throws Exception {
+            String body = send(client, get(target + "/api/books?limit=0")).body();
+            return Integer.parseInt(body.substring(body.indexOf(':') + 1, body.indexOf(',')));
+        }
+
+        private String sessionFrom(HttpResponse<String> response) {
+            String body = response.body();
+            int start = body.indexOf(":\"") + 2;
+            return body.substring(start, body.indexOf('"', start));
+        }
+
+        private HttpRequest get(String url) {
+            return HttpRequest.newBuilder(URI.create(url)).GET().build();
+        }
+
+        private HttpRequest post(String url) {
+            return HttpRequest.newBuilder(URI.create(url)).POST(HttpRequest.BodyPublishers.noBody()).build();
+        }
+
+        private HttpResponse<String> send(HttpClient client, HttpRequest request) throws IOException, InterruptedException {
+            return client.send(request, HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    // --- Timed Event Queue ---
+    // Pushed onto the system event queue in GUI mode. It times every event the EDT dispatches
+    // and flags any that blocks the EDT for longer than STALL_MILLIS, which shows up as a
+    // frozen window. Flagged events bump gui.edt.stalls and can raise an EdtStallEvent.
+    class TimedEventQueue extends EventQueue {
+        private static final long STALL_MILLIS = 100;
+        // Checked per event so nothing is allocated unless a recording has EdtStall on.
+        private static final EventType STALL_TYPE = EventType.getEventType(EdtStallEvent.class);
+
+        @Override
+        protected void dispatchEvent(AWTEvent event) {
+            EdtStallEvent stall = STALL_TYPE.isEnabled() ? new EdtStallEvent() : null;
+            if (stall != null) {
+                stall.begin();
+            }
+            long start = System.nanoTime();
+            try {
+                super.dispatchEvent(event);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                metrics.edtDispatch.record(elapsed);
+                if (elapsed >= TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS)) {
+                    metrics.edtStalls.increment();
+                }
+                if (stall != null) {
+                    stall.end();
+                    if (stall.shouldCommit()) {
+                        stall.eventType = event.getClass().getSimpleName() + " #" + event.getID();
+                        stall.source = event.getSource() == null ? null : event.getSource().getClass().getName();
+                        stall.commit();
+                    }
+                }
             }
-            return false;
         }
     }
 
@@ -92,7 +7061,8 @@ public class BookstoreSystem {
     class WelcomeScreen {
         private JFrame welcomeFrame;
 
-        public WelcomeScreen(Inventory inventory, User user) {
+        public WelcomeScreen(Inventory inventory, Reservations reservations, OrderPipeline orders, SalesAnalytics analytics,
+                User user) {
             welcomeFrame = new JFrame("Welcome to ReadNest");
             welcomeFrame.setSize(500, 300);
             welcomeFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -133,7 +7103,7 @@ public class BookstoreSystem {
             enterButton.setBorder(BorderFactory.createEmptyBorder(10, 25, 10, 25));
             enterButton.addActionListener(e -> {
                 welcomeFrame.dispose();
-                new BookStoreGUI(inventory, user);
+                new BookStoreGUI(inventory, reservations, orders, analytics, user);
             });
 
             buttonPanel.add(enterButton);
@@ -157,20 +7127,48 @@ public class BookstoreSystem {
 
     // --- BookStore GUI ---
     class BookStoreGUI {
+        private static final int SEARCH_LIMIT = 200;
+        private static final int SEARCH_DELAY_MILLIS = 150;
+        private static final int BROWSE_LIMIT = 200;
+        private static final long BUDGET_PAISE = 500_00;
+        private static final int LOW_STOCK_UNITS = 3;
+        private static final int BESTSELLERS_SHOWN = 10;
+        private static final int TOGETHER_SHOWN = 5;
+        private static final int SALES_REFRESH_MILLIS = 2_000;
+        private static final String[] VIEWS = {"All books", "Cheapest in stock", "Priciest in stock",
+                "Under ₹500", "Low stock", "Most in stock"};
+
         private JFrame frame;
         private Inventory inventory;
+        private Reservations reservations;
+        private OrderPipeline orders;
+        private SalesAnalytics analytics;
         private User user;
-        private DefaultListModel<Book> model;
+        private PagedListModel<Book> model;
+        private JTextField searchField;
+        private JComboBox<String> viewBox;
+        private StockPriceIndex ranges;
+        private InventoryEventBus events;
 
-        public BookStoreGUI(Inventory inventory, User user) {
+        public BookStoreGUI(Inventory inventory, Reservations reservations, OrderPipeline orders, SalesAnalytics analytics,
+                User user) {
             this.inventory = inventory;
+            this.reservations = reservations;
+            this.orders = orders;
+            this.analytics = analytics;
             this.user = user;
+            this.ranges = new StockPriceIndex();
+            // Building the index walks the whole catalog, so it happens off the EDT; until it
+            // finishes the sorted views show the books indexed so far.
+            Thread indexer = new Thread(() -> ranges.attach(inventory), "price-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
             initGUI();
         }
 
         public void initGUI() {
             frame = new JFrame("ReadNest - Online Bookstore");
-            frame.setSize(600, 500);
+            frame.setSize(820, 500);
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setLayout(new BorderLayout());
             frame.getContentPane().setBackground(new Color(240, 248, 255));
@@ -190,19 +7188,58 @@ public class BookstoreSystem {
             userLabel.setForeground(Color.WHITE);
             headerPanel.add(userLabel, BorderLayout.EAST);
 
+            // Search box
+            searchField = new JTextField();
+            searchField.setFont(new Font("Arial", Font.PLAIN, 14));
+            searchField.setToolTipText("Search by title or author");
+            JPanel searchPanel = new JPanel(new BorderLayout());
+            searchPanel.setOpaque(false);
+            searchPanel.setBorder(BorderFactory.createEmptyBorder(0, 15, 0, 15));
+            searchPanel.add(searchField, BorderLayout.CENTER);
+            viewBox = new JComboBox<>(VIEWS);
+            viewBox.setToolTipText("Sort and filter the catalog");
+            searchPanel.add(viewBox, BorderLayout.EAST);
+            headerPanel.add(searchPanel, BorderLayout.CENTER);
+
             frame.add(headerPanel, BorderLayout.NORTH);
 
             // Create book list
-            model = new DefaultListModel<>();
-            for (Book book : inventory.getBooks()) {
-                model.addElement(book);
-            }
-            JList<Book> bookList = new JList<>(model);
-            bookList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-            bookList.setCellRenderer(new BookCellRenderer());
+            model = new PagedListModel<>(new PageSource<Book>() {
+                public int size() { return inventory.size(); }
+                public List<Book> loadPage(int start, int count) { return inventory.getBooks(start, count); }
+            });
+            JList<Book> bookList = createList(model, prototypeBook());
+            bookList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+
+            // Stock changes from every session, repainting only the visible rows they touch
+            events = new InventoryEventBus();
+            events.subscribe((ids, count, catalogGrew) -> {
+                if (catalogGrew) {
+                    model.refreshSize();
+                }
+                repaintChanged(bookList, ids, count);
+            });
+            inventory.addListener(events);
             JScrollPane scrollPane = new JScrollPane(bookList);
             scrollPane.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
             frame.add(scrollPane, BorderLayout.CENTER);
+            frame.add(createSalesPanel(bookList), BorderLayout.EAST);
+
+            // Search as you type, waiting for a short pause in typing before querying
+            Timer searchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> runSearch(bookList, searchField.getText()));
+            viewBox.addActionListener(e -> {
+                if (searchField.getText().isBlank()) {
+                    showView(bookList);
+                } else {
+                    searchField.setText(""); // the view replaces the search results
+                }
+            });
+            searchTimer.setRepeats(false);
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+            });
 
             // Create button panel
             JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 15));
@@ -211,17 +7248,28 @@ public class BookstoreSystem {
             JButton addButton = createStyledButton("Add to Cart", new Color(34, 139, 34)); // ForestGreen
             JButton viewCartButton = createStyledButton("View Cart", new Color(70, 130, 180)); // SteelBlue
             JButton checkoutButton = createStyledButton("Checkout", new Color(178, 34, 34)); // FireBrick
+            JButton importButton = createStyledButton("Import", new Color(105, 105, 105)); // DimGray
+            importButton.setToolTipText("Import a publisher feed (CSV or JSON)");
 
+            // Several selected titles are added together or not at all
             addButton.addActionListener(e -> {
-                Book selected = bookList.getSelectedValue();
-                if (selected != null) {
-                    if (inventory.purchaseBook(selected)) {
-                        user.getCart().addBook(selected);
-                        model.setElementAt(selected, bookList.getSelectedIndex());
-                        showMessage("Book Added", selected.getTitle() + " has been added to your cart!", false);
-                        bookList.repaint();
+                List<Book> selected = bookList.getSelectedValuesList();
+                if (!selected.isEmpty()) {
+                    String titles = selected.size() == 1 ? selected.get(0).getTitle() : selected.size() + " books";
+                    int[] quantities = new int[selected.size()];
+                    java.util.Arrays.fill(quantities, 1);
+                    if (selected.size() == 1 ? reservations.hold(user.getCart(), selected.get(0), 1)
+                            : reservations.holdAll(user.getCart(), selected, quantities)) {
+                        if (bookList.getModel() != model && searchField.getText().isBlank()) {
+                            showView(bookList); // stock moved, so the view may have reordered
+                        }
+                        showMessage("Book Added", titles + (selected.size() == 1 ? " has" : " have")
+                                + " been added to your cart! We'll hold " + (selected.size() == 1 ? "it" : "them")
+                                + " for you for " + TimeUnit.MILLISECONDS.toMinutes(reservations.getTtlMillis()) + " minutes.", false);
+                    } else if (selected.size() == 1) {
+                        showMessage("Out of Stock", "Sorry, " + titles + " is out of stock!", true);
                     } else {
-                        showMessage("Out of Stock", "Sorry, " + selected.getTitle() + " is out of stock!", true);
+                        showMessage("Out of Stock", "Sorry, not all of those books are in stock, so none were added.", true);
                     }
                 } else {
                     showMessage("No Selection", "Please select a book first!", true);
@@ -231,7 +7279,7 @@ public class BookstoreSystem {
             viewCartButton.addActionListener(e -> showCart());
 
             checkoutButton.addActionListener(e -> {
-                if (user.getCart().getItems().isEmpty()) {
+                if (user.getCart().isEmpty()) {
                     showMessage("Empty Cart", "Your cart is empty. Add some books first!", true);
                 } else {
                     checkout();
@@ -241,12 +7289,254 @@ public class BookstoreSystem {
             buttonPanel.add(addButton);
             buttonPanel.add(viewCartButton);
             buttonPanel.add(checkoutButton);
+            buttonPanel.add(importButton);
             frame.add(buttonPanel, BorderLayout.SOUTH);
 
+            importButton.addActionListener(e -> importCatalog(importButton));
+
             frame.setLocationRelativeTo(null); // Center on screen
             frame.setVisible(true);
         }
 
+        // Runs the query on a worker thread and swaps in a small results model, so the
+        // full catalog model is never rebuilt on the EDT. An empty query restores the current view.
+        private void runSearch(JList<Book> bookList, String query) {
+            if (query.isBlank()) {
+                showView(bookList);
+                return;
+            }
+            new SwingWorker<List<Book>, Void>() {
+                @Override
+                protected List<Book> doInBackground() {
+                    return inventory.search(query, SEARCH_LIMIT);
+                }
+
+                @Override
+                protected void done() {
+                    if (!query.equals(searchField.getText())) {
+                        return; // a newer query is already on its way
+                    }
+                    try {
+                        bookList.setModel(new SearchResultsModel(get()));
+                    } catch (InterruptedException | ExecutionException ex) {
+                        showMessage("Search Failed", "Could not search the catalog: " + ex.getMessage(), true);
+                    }
+                }
+            }.execute();
+        }
+
+        // Fires one contentsChanged per run of adjacent visible rows whose book changed. Rows
+        // off screen need nothing: they read live stock when they're scrolled into view.
+        private void repaintChanged(JList<Book> list, int[] ids, int count) {
+            int first = list.getFirstVisibleIndex();
+            int last = list.getLastVisibleIndex();
+            if (count == 0 || first < 0) {
+                return;
+            }
+            PagedListModel<Book> rows = (PagedListModel<Book>) list.getModel();
+            int runStart = -1;
+            for (int row = first; row <= last + 1; row++) {
+                Book book = row <= last ? rows.getElementAt(row) : null;
+                boolean changed = book != null && java.util.Arrays.binarySearch(ids, 0, count, book.getId()) >= 0;
+                if (changed && runStart < 0) {
+                    runStart = row;
+                } else if (!changed && runStart >= 0) {
+                    rows.rowsChanged(runStart, row - 1);
+                    runStart = -1;
+                }
+            }
+        }
+
+        // Keeps an open cart view current. An expired hold takes its line out of the cart,
+        // so any change to a book on show reloads the lines and the total.
+        private StockSubscriber cartWatcher(PagedListModel<CartLine> lines, JLabel totalLabel) {
+            return (ids, count, catalogGrew) -> {
+                for (int row = 0; row < lines.getSize(); row++) {
+                    CartLine line = lines.getElementAt(row);
+                    if (line != null && java.util.Arrays.binarySearch(ids, 0, count, line.getBook().getId()) >= 0) {
+                        lines.reload();
+                        totalLabel.setText("Total: ₹" + formatRupees(user.getCart().getTotalPaise()));
+                        return;
+                    }
+                }
+            };
+        }
+
+        // Bestsellers, and what's bought with the selected book, straight from the sales sketches.
+        // Each query takes microseconds, so both lists refresh on the EDT from a slow timer.
+        private JPanel createSalesPanel(JList<Book> bookList) {
+            DefaultListModel<String> bestsellers = new DefaultListModel<>();
+            DefaultListModel<String> together = new DefaultListModel<>();
+            JLabel togetherLabel = new JLabel("Frequently bought together");
+            Runnable refresh = () -> {
+                showRanked(bestsellers, analytics.bestsellers(BESTSELLERS_SHOWN), " sold");
+                Book selected = bookList.getSelectedValue();
+                togetherLabel.setText(selected == null ? "Frequently bought together"
+                        : "Bought with " + selected.getTitle());
+                showRanked(together, selected == null ? List.of() : analytics.boughtWith(selected, TOGETHER_SHOWN), " orders");
+            };
+            bookList.addListSelectionListener(e -> {
+                if (!e.getValueIsAdjusting()) {
+                    refresh.run();
+                }
+            });
+            Timer refreshTimer = new Timer(SALES_REFRESH_MILLIS, e -> refresh.run());
+            refreshTimer.start();
+            refresh.run();
+
+            JPanel salesPanel = new JPanel(new GridLayout(2, 1, 0, 10));
+            salesPanel.setBackground(new Color(240, 248, 255));
+            salesPanel.setBorder(BorderFactory.createEmptyBorder(10, 0, 10, 10));
+            salesPanel.setPreferredSize(new Dimension(220, 0));
+            salesPanel.add(salesList(new JLabel("Bestsellers"), bestsellers));
+            salesPanel.add(salesList(togetherLabel, together));
+            return salesPanel;
+        }
+
+        private JPanel salesList(JLabel label, DefaultListModel<String> rows) {
+            label.setFont(new Font("Georgia", Font.BOLD, 14));
+            label.setForeground(new Color(70, 130, 180));
+            JPanel panel = new JPanel(new BorderLayout(0, 5));
+            panel.setOpaque(false);
+            panel.add(label, BorderLayout.NORTH);
+            panel.add(new JScrollPane(new JList<>(rows)), BorderLayout.CENTER);
+            return panel;
+        }
+
+        private void showRanked(DefaultListModel<String> rows, List<SalesAnalytics.Ranked> ranked, String unit) {
+            rows.clear();
+            for (SalesAnalytics.Ranked entry : ranked) {
+                rows.addElement(entry.book.getTitle() + " (" + entry.count + unit + ")");
+            }
+        }
+
+        // Sorted and filtered views are read straight off the price and stock indexes, first
+        // BROWSE_LIMIT rows only, so switching views is cheap enough for the EDT at any catalog size.
+        private void showView(JList<Book> bookList) {
+            List<Book> rows;
+            switch (viewBox.getSelectedIndex()) {
+                case 1: rows = ranges.byPrice(0, Long.MAX_VALUE, true, false, BROWSE_LIMIT); break;
+                case 2: rows = ranges.byPrice(0, Long.MAX_VALUE, true, true, BROWSE_LIMIT); break;
+                case 3: rows = ranges.byPrice(0, BUDGET_PAISE, true, false, BROWSE_LIMIT); break;
+                case 4: rows = ranges.byStock(0, LOW_STOCK_UNITS, false, BROWSE_LIMIT); break;
+                case 5: rows = ranges.byStock(0, Integer.MAX_VALUE, true, BROWSE_LIMIT); break;
+                default:
+                    bookList.setModel(model);
+                    return;
+            }
+            bookList.setModel(new SearchResultsModel(rows));
+        }
+
+        // Imports a feed on a worker thread with a progress dialog; the list grows when it's done.
+        private void importCatalog(JButton importButton) {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Catalog feeds (CSV, JSON)",
+                    "csv", "json", "jsonl", "ndjson"));
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            Path feed = chooser.getSelectedFile().toPath();
+
+            JDialog progressDialog = new JDialog(frame, "Importing " + feed.getFileName(), false);
+            JProgressBar progressBar = new JProgressBar(0, 1_000);
+            progressBar.setStringPainted(true);
+            JLabel progressLabel = new JLabel("Reading...");
+            JPanel progressPanel = new JPanel(new BorderLayout(0, 10));
+            progressPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+            progressPanel.add(progressLabel, BorderLayout.NORTH);
+            progressPanel.add(progressBar, BorderLayout.CENTER);
+            progressDialog.add(progressPanel);
+            progressDialog.setSize(360, 120);
+            progressDialog.setLocationRelativeTo(frame);
+            progressDialog.setVisible(true);
+            importButton.setEnabled(false);
+
+            new SwingWorker<CatalogImporter.Stats, long[]>() {
+                @Override
+                protected CatalogImporter.Stats doInBackground() throws IOException {
+                    return new CatalogImporter(inventory).importFile(feed,
+                            (read, total, books) -> publish(new long[] {read, total, books}));
+                }
+
+                @Override
+                protected void process(List<long[]> updates) {
+                    long[] latest = updates.get(updates.size() - 1);
+                    progressBar.setValue(latest[1] == 0 ? 1_000 : (int) (latest[0] * 1_000 / latest[1]));
+                    progressLabel.setText(String.format("%,d books loaded", latest[2]));
+                    model.refreshSize();
+                }
+
+                @Override
+                protected void done() {
+                    progressDialog.dispose();
+                    importButton.setEnabled(true);
+                    model.refreshSize();
+                    try {
+                        CatalogImporter.Stats stats = get();
+                        String skipped = stats.skipped == 0 ? "" : String.format(" Skipped %,d bad record(s), e.g. %s.",
+                                stats.skipped, stats.firstProblem);
+                        showMessage("Import Complete", String.format("Imported %,d books in %.1f s.", stats.books,
+                                stats.millis / 1000.0) + skipped, false);
+                    } catch (InterruptedException | ExecutionException ex) {
+                        showMessage("Import Failed", "Could not import " + feed.getFileName() + ": "
+                                + (ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage()), true);
+                    }
+                }
+            }.execute();
+        }
+
+        class SearchResultsModel extends PagedListModel<Book> {
+            private static final long serialVersionUID = 1L;
+
+            SearchResultsModel(List<Book> results) {
+                super(new PageSource<Book>() {
+                    public int size() { return results.size(); }
+                    public List<Book> loadPage(int start, int count) {
+                        return results.subList(start, Math.min(results.size(), start + count));
+                    }
+                });
+            }
+        }
+
+        // Rows have a fixed size taken from a prototype book, so JList never has to render
+        // every row up front to measure it and opening the list costs the same at any size.
+        private <E> JList<E> createList(ListModel<E> listModel, E prototype) {
+            JList<E> list = new JList<>(listModel);
+            list.setCellRenderer(new BookCellRenderer());
+            list.setPrototypeCellValue(prototype);
+            return list;
+        }
+
+        private Book prototypeBook() {
+            return new Book("A Typical Book Title of Some Length", "Firstname Lastname", 999.0, 99);
+        }
+
+        private CartLine prototypeLine() {
+            CartLine line = new CartLine(prototypeBook(), 0);
+            line.quantity = 99;
+            return line;
+        }
+
+        // The reservation sweeper takes expired lines out of the cart at any time, so reads
+        // hold the cart's lock.
+        private PageSource<CartLine> cartSource() {
+            Cart cart = user.getCart();
+            List<CartLine> lines = cart.getLines();
+            return new PageSource<CartLine>() {
+                public int size() {
+                    synchronized (cart) {
+                        return lines.size();
+                    }
+                }
+
+                public List<CartLine> loadPage(int start, int count) {
+                    synchronized (cart) {
+                        return new ArrayList<>(lines.subList(Math.min(start, lines.size()), Math.min(lines.size(), start + count)));
+                    }
+                }
+            };
+        }
+
         private JButton createStyledButton(String text, Color bgColor) {
             JButton button = new JButton(text);
             button.setFont(new Font("Arial", Font.BOLD, 14));
@@ -265,11 +7555,12 @@ public class BookstoreSystem {
         }
 
         private void showCart() {
-            if (user.getCart().getItems().isEmpty()) {
+            if (user.getCart().isEmpty()) {
                 showMessage("Your Cart", "Your cart is currently empty.", false);
                 return;
             }
 
+            long start = System.nanoTime();
             JDialog cartDialog = new JDialog(frame, "Your Shopping Cart", true);
             cartDialog.setSize(450, 400);
             cartDialog.setLayout(new BorderLayout());
@@ -286,12 +7577,8 @@ public class BookstoreSystem {
             cartDialog.add(headerPanel, BorderLayout.NORTH);
 
             // Create book list
-            DefaultListModel<Book> cartModel = new DefaultListModel<>();
-            for (Book book : user.getCart().getItems()) {
-                cartModel.addElement(book);
-            }
-            JList<Book> cartList = new JList<>(cartModel);
-            cartList.setCellRenderer(new BookCellRenderer());
+            PagedListModel<CartLine> cartModel = new PagedListModel<>(cartSource());
+            JList<CartLine> cartList = createList(cartModel, prototypeLine());
             JScrollPane scrollPane = new JScrollPane(cartList);
             scrollPane.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
             cartDialog.add(scrollPane, BorderLayout.CENTER);
@@ -301,20 +7588,45 @@ public class BookstoreSystem {
             footerPanel.setBorder(BorderFactory.createEmptyBorder(10, 15, 10, 15));
             footerPanel.setBackground(new Color(240, 248, 255));
 
-            JLabel totalLabel = new JLabel("Total: ₹" + String.format("%.2f", user.getCart().getTotal()));
+            JLabel totalLabel = new JLabel("Total: ₹" + formatRupees(user.getCart().getTotalPaise()));
             totalLabel.setFont(new Font("Arial", Font.BOLD, 16));
             footerPanel.add(totalLabel, BorderLayout.CENTER);
 
+            // Removing a line puts its copies straight back on sale
+            JButton removeButton = new JButton("Remove");
+            removeButton.addActionListener(e -> {
+                CartLine line = cartList.getSelectedValue();
+                if (line == null) {
+                    return;
+                }
+                reservations.drop(user.getCart(), line.getBook(), line.getQuantity());
+                cartModel.reload();
+                totalLabel.setText("Total: ₹" + formatRupees(user.getCart().getTotalPaise()));
+            });
+
             JButton closeButton = new JButton("Close");
             closeButton.addActionListener(e -> cartDialog.dispose());
-            footerPanel.add(closeButton, BorderLayout.EAST);
+
+            JPanel cartButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 0));
+            cartButtons.setOpaque(false);
+            cartButtons.add(removeButton);
+            cartButtons.add(closeButton);
+            footerPanel.add(cartButtons, BorderLayout.EAST);
 
             cartDialog.add(footerPanel, BorderLayout.SOUTH);
             cartDialog.setLocationRelativeTo(frame);
-            cartDialog.setVisible(true);
+            metrics.showCart.record(System.nanoTime() - start); // setVisible blocks until the dialog closes
+            StockSubscriber watcher = cartWatcher(cartModel, totalLabel);
+            events.subscribe(watcher);
+            try {
+                cartDialog.setVisible(true);
+            } finally {
+                events.unsubscribe(watcher);
+            }
         }
 
         private void checkout() {
+            long start = System.nanoTime();
             JDialog checkoutDialog = new JDialog(frame, "Checkout", true);
             checkoutDialog.setSize(450, 400);
             checkoutDialog.setLayout(new BorderLayout());
@@ -331,12 +7643,8 @@ public class BookstoreSystem {
             checkoutDialog.add(headerPanel, BorderLayout.NORTH);
 
             // Create book list
-            DefaultListModel<Book> checkoutModel = new DefaultListModel<>();
-            for (Book book : user.getCart().getItems()) {
-                checkoutModel.addElement(book);
-            }
-            JList<Book> checkoutList = new JList<>(checkoutModel);
-            checkoutList.setCellRenderer(new BookCellRenderer());
+            PagedListModel<CartLine> checkoutModel = new PagedListModel<>(cartSource());
+            JList<CartLine> checkoutList = createList(checkoutModel, prototypeLine());
             JScrollPane scrollPane = new JScrollPane(checkoutList);
             scrollPane.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
             checkoutDialog.add(scrollPane, BorderLayout.CENTER);
@@ -346,7 +7654,7 @@ public class BookstoreSystem {
             footerPanel.setBorder(BorderFactory.createEmptyBorder(10, 15, 10, 15));
             footerPanel.setBackground(new Color(240, 248, 255));
 
-            JLabel totalLabel = new JLabel("Total: ₹" + String.format("%.2f", user.getCart().getTotal()));
+            JLabel totalLabel = new JLabel("Total: ₹" + formatRupees(user.getCart().getTotalPaise()));
             totalLabel.setFont(new Font("Arial", Font.BOLD, 16));
             footerPanel.add(totalLabel, BorderLayout.CENTER);
 
@@ -357,10 +7665,17 @@ public class BookstoreSystem {
             cancelButton.addActionListener(e -> checkoutDialog.dispose());
 
             JButton confirmButton = createStyledButton("Confirm Purchase", new Color(34, 139, 34));
+            // The order is committed in the background; the dialog waits for the callback
             confirmButton.addActionListener(e -> {
-                user.getCart().clear();
-                checkoutDialog.dispose();
-                showMessage("Thank You", "Your purchase has been completed successfully!", false);
+                OrderPipeline.Order order = orders.trySubmit(user.getName(), user.getCart(),
+                        placed -> SwingUtilities.invokeLater(() -> orderPlaced(checkoutDialog, placed)));
+                if (order == null) {
+                    showMessage("Checkout Busy", "We're taking a lot of orders right now. Please try again in a moment.", true);
+                    return;
+                }
+                confirmButton.setEnabled(false);
+                cancelButton.setEnabled(false);
+                totalLabel.setText("Placing your order...");
             });
 
             buttonPanel.add(cancelButton);
@@ -369,41 +7684,37 @@ public class BookstoreSystem {
 
             checkoutDialog.add(footerPanel, BorderLayout.SOUTH);
             checkoutDialog.setLocationRelativeTo(frame);
-            checkoutDialog.setVisible(true);
+            metrics.checkoutDialog.record(System.nanoTime() - start);
+            StockSubscriber summary = cartWatcher(checkoutModel, totalLabel);
+            StockSubscriber watcher = (ids, count, catalogGrew) -> {
+                if (confirmButton.isEnabled()) { // the cart is frozen once the order is on its way
+                    summary.stockChanged(ids, count, catalogGrew);
+                }
+            };
+            events.subscribe(watcher);
+            try {
+                checkoutDialog.setVisible(true);
+            } finally {
+                events.unsubscribe(watcher);
+            }
         }
 
-        // Custom cell renderer for book list
-        class BookCellRenderer extends DefaultListCellRenderer {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, 
-                    boolean isSelected, boolean cellHasFocus) {
-                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-                if (value instanceof Book) {
-                    Book book = (Book) value;
-                    setText("<html><b>" + book.getTitle() + "</b> by " + book.getAuthor() + 
-                            "<br>Price: ₹" + book.getPrice() + " | Stock: " + book.getStock() + "</html>");
-                    if (book.getStock() == 0) {
-                        setForeground(Color.GRAY);
-                    } else {
-                        setForeground(isSelected ? Color.WHITE : Color.BLACK);
-                    }
-                }
-                if (isSelected) {
-                    setBackground(new Color(70, 130, 180));
-                } else {
-                    setBackground(index % 2 == 0 ? Color.WHITE : new Color(240, 248, 255));
-                }
-                setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-                return this;
+        private void orderPlaced(JDialog checkoutDialog, OrderPipeline.Order order) {
+            checkoutDialog.dispose();
+            if (order.getStatus() == OrderPipeline.Status.COMMITTED) {
+                showMessage("Thank You", "Order #" + order.getId() + " is confirmed: " + order.getItemCount()
+                        + " book(s), ₹" + formatRupees(order.getTotalPaise()) + ".", false);
+            } else if (order.getStatus() == OrderPipeline.Status.REJECTED) {
+                showMessage("Hold Expired", "Your cart was held too long and the books went back on sale.", true);
+            } else {
+                showMessage("Order Failed", order.getProblem() + ". The books have gone back on sale.", true);
             }
         }
     }
 
-    // --- Main Method ---
-    public static void main(String[] args) {
-        BookstoreSystem system = new BookstoreSystem();
-        Inventory inventory = system.new Inventory();
-
+    // --- Default Catalog ---
+    // Stocked on first run; afterwards the catalog comes from the inventory store.
+    static void addDefaultBooks(BookstoreSystem system, Inventory inventory) {
         // Programming Books
         inventory.addBook(system.new Book("Java Basics", "James Gosling", 499.0, 5));
         inventory.addBook(system.new Book("Effective Java", "Joshua Bloch", 799.0, 3));
@@ -459,8 +7770,146 @@ public class BookstoreSystem {
         inventory.addBook(system.new Book("The Four Agreements", "Don Miguel Ruiz", 399.0, 8));
         inventory.addBook(system.new Book("Man's Search for Meaning", "Viktor Frankl", 449.0, 6));
         inventory.addBook(system.new Book("The Art of Happiness", "Dalai Lama", 499.0, 5));
+    }
+
+    // --- Main Method ---
+    public static void main(String[] args) throws Exception {
+        BookstoreSystem system = new BookstoreSystem();
+        String metricsDump = System.getProperty("readnest.metrics.dump");
+        if (metricsDump != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> system.metrics.dump(metricsDump), "metrics-dump"));
+        }
+        if (args.length > 2 && args[0].equals("shard-worker")) {
+            system.new ShardWorker().run(args[1], args[2]);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-shards")) {
+            system.new ShardScalingBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 4,
+                    args.length > 2 ? args[2] : "in-process", args.length > 3 ? Integer.parseInt(args[3]) : 8);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-stock")) {
+            system.new StockContentionBenchmark().run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-search")) {
+            system.new CatalogSearchBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-render")) {
+            System.setProperty("java.awt.headless", "true");
+            system.new RendererPaintBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 5_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            System.setProperty("java.awt.headless", "true");
+            system.new BenchmarkSuite().run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-sessions")) {
+            system.new SessionStoreBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 100_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-ranges")) {
+            system.new StockPriceIndexBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-columnar")) {
+            system.new ColumnarCatalogBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-import")) {
+            system.new CatalogImportBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-holds")) {
+            system.new ReservationSweepBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-orders")) {
+            system.new OrderPipelineBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-analytics")) {
+            system.new SalesAnalyticsBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-store")) {
+            system.new InventoryStoreBenchmark().run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 4);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("loadtest")) {
+            system.new StorefrontLoadTest().run(args.length > 1 ? args[1] : null);
+            return;
+        }
+
+        // -Dreadnest.shards=N spreads the stock over N partitions, kept in process or in worker
+        // processes as -Dreadnest.shards.transport says (in-process, tcp or unix).
+        // -Dreadnest.catalog=columnar keeps the catalog in columns instead of Book objects.
+        int partitions = Integer.getInteger("readnest.shards", 0);
+        boolean columnar = System.getProperty("readnest.catalog", "objects").equals("columnar");
+        if (partitions > 0 && columnar) {
+            throw new IllegalArgumentException("readnest.shards and readnest.catalog=columnar can't be combined");
+        }
+        LocalInventory inventory = partitions > 0
+                ? system.new ShardedInventory(partitions, System.getProperty("readnest.shards.transport", "in-process"), 16)
+                : columnar ? system.new ColumnarInventory() : system.new LocalInventory();
+
+        Path dataDir = Paths.get(System.getProperty("readnest.data", "readnest-data"));
+        InventoryStore store = system.new InventoryStore(dataDir);
+        boolean firstRun = store.recover(inventory) == null;
+        store.attach(inventory);
+        // Carts aren't saved, so holds still outstanding at exit go back into stock first.
+        Reservations reservations = system.new Reservations(inventory,
+                TimeUnit.MINUTES.toMillis(Long.getLong("readnest.holdMinutes", 15)), 1_000);
+        reservations.start();
+        OrderPipeline orders = system.new OrderPipeline(reservations, dataDir.resolve("orders.log"), 1_024, 256);
+        orders.start();
+        SalesAnalytics analytics = system.new SalesAnalytics(inventory, 1_024, 16_384, 65_536);
+        analytics.start(reservations, orders);
+        StorefrontServer storefront = args.length > 0 && args[0].equals("server")
+                ? system.new StorefrontServer(inventory, reservations, orders, analytics) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (storefront != null) {
+                    storefront.stop(); // no new requests, and its session spill files go
+                }
+                orders.close();
+                analytics.close();
+                reservations.close();
+                store.close();
+                if (inventory instanceof ShardedInventory) {
+                    ((ShardedInventory) inventory).close();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Could not save inventory: " + e);
+            }
+        }));
+        if (firstRun) {
+            addDefaultBooks(system, inventory);
+        }
+
+        if (args.length > 1 && args[0].equals("import")) {
+            CatalogImporter.Stats stats = system.new CatalogImporter(inventory).importFile(Paths.get(args[1]),
+                    (read, total, books) -> System.out.printf("\r%3d%%  %,d books", total == 0 ? 100 : read * 100 / total, books));
+            System.out.printf("%nImported %,d books (%,d skipped) in %,d ms%n", stats.books, stats.skipped, stats.millis);
+            if (stats.firstProblem != null) {
+                System.out.println("First skipped record: " + stats.firstProblem);
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("server")) {
+            int port = storefront.start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            System.out.println("ReadNest storefront listening on http://localhost:" + port + "/api/books");
+            return;
+        }
 
         User user = system.new User("Guest");
-        SwingUtilities.invokeLater(() -> system.new WelcomeScreen(inventory, user));
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(system.new TimedEventQueue());
+        SwingUtilities.invokeLater(() -> system.new WelcomeScreen(inventory, reservations, orders, analytics, user));
     }
 }
\ No newline at end of file